@@ -0,0 +1,150 @@
+package riot.riotctl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import riot.riotctl.FleetResult.HostResult;
+
+/**
+ * Runs an operation on several hosts concurrently, with a limit on the number
+ * of hosts handled at once and an optional time limit per host. Hosts on which
+ * the time limit is exceeded are interrupted.
+ */
+class FleetExecutor {
+
+    interface HostTask<T> {
+        void run(T host) throws Exception;
+    }
+
+    private final Logger log;
+    private final int maxConcurrency;
+    private final long hostTimeout;
+
+    /**
+     * @param maxConcurrency
+     *            the maximum number of hosts on which the operation runs at once
+     * @param hostTimeout
+     *            the time limit per host in milliseconds, or 0 for none
+     */
+    FleetExecutor(Logger log, int maxConcurrency, long hostTimeout) {
+        this.log = log;
+        this.maxConcurrency = maxConcurrency;
+        this.hostTimeout = hostTimeout;
+    }
+
+    /**
+     * Runs an operation on all hosts, and waits for it to complete. Failures are
+     * summarised in the log, and returned in the result.
+     */
+    <T> FleetResult execute(String operation, List<T> hosts, Function<T, String> hostName, HostTask<T> task) {
+        final FleetResult result = new FleetResult(operation);
+        if (hosts.isEmpty()) {
+            return result;
+        }
+
+        final ExecutorService pool = Executors.newFixedThreadPool(Math.min(maxConcurrency, hosts.size()),
+                daemonThreads("riotctl-" + operation));
+        final ScheduledExecutorService watchdog = hostTimeout > 0
+                ? Executors.newSingleThreadScheduledExecutor(daemonThreads("riotctl-watchdog"))
+                : null;
+        final List<Future<HostResult>> futures = new ArrayList<Future<HostResult>>(hosts.size());
+        for (T host : hosts) {
+            futures.add(pool.submit(() -> run(hostName.apply(host), host, task, watchdog)));
+        }
+        pool.shutdown();
+
+        int completed = 0;
+        try {
+            for (Future<HostResult> future : futures) {
+                result.add(future.get());
+                completed++;
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            // Keep one result per host, so that results can be matched to hosts by position
+            for (int i = completed; i < futures.size(); i++) {
+                result.add(getIfDone(futures.get(i), hostName.apply(hosts.get(i))));
+            }
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Not expected, since run() catches everything
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            if (watchdog != null) {
+                watchdog.shutdownNow();
+            }
+        }
+
+        final List<HostResult> failures = result.getFailures();
+        if (!failures.isEmpty()) {
+            StringBuilder sb = new StringBuilder(operation).append(" failed on ").append(failures.size())
+                    .append(" of ").append(hosts.size()).append(" hosts:");
+            for (HostResult failure : failures) {
+                sb.append("\n - ").append(failure);
+            }
+            log.error(sb.toString());
+        }
+        return result;
+    }
+
+    private <T> HostResult run(String name, T host, HostTask<T> task, ScheduledExecutorService watchdog) {
+        final long start = System.currentTimeMillis();
+        final Thread thread = Thread.currentThread();
+        final AtomicBoolean timedOut = new AtomicBoolean();
+        final ScheduledFuture<?> timer = watchdog == null ? null : watchdog.schedule(() -> {
+            timedOut.set(true);
+            thread.interrupt();
+        }, hostTimeout, TimeUnit.MILLISECONDS);
+
+        Throwable failure = null;
+        try {
+            task.run(host);
+        } catch (Exception e) {
+            failure = timedOut.get() ? new TimeoutException("Timed out after " + hostTimeout + " ms") : e;
+        } finally {
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            // Clear an interrupt from a timer that fired just as the task completed
+            Thread.interrupted();
+        }
+
+        final long duration = System.currentTimeMillis() - start;
+        log.debug(name + " - done in " + duration + " ms");
+        return new HostResult(name, failure, duration);
+    }
+
+    /**
+     * @return the result of a host, or a failure if it didn't complete before
+     *         the operation was interrupted
+     */
+    private static HostResult getIfDone(Future<HostResult> future, String name) {
+        if (future.isDone() && !future.isCancelled()) {
+            try {
+                return future.get();
+            } catch (InterruptedException | ExecutionException e) {
+                // Not expected, since it is done and run() catches everything
+            }
+        }
+        return new HostResult(name, new InterruptedException("Interrupted before completing"), 0);
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,103 @@
+package riot.riotctl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of an operation that was run on several hosts: whether it
+ * succeeded on each host, why it failed, and how long it took.
+ */
+public class FleetResult {
+
+    public static class HostResult {
+        private final String host;
+        private final Throwable failure;
+        private final long duration;
+
+        HostResult(String host, Throwable failure, long duration) {
+            this.host = host;
+            this.failure = failure;
+            this.duration = duration;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public boolean isSuccess() {
+            return failure == null;
+        }
+
+        /**
+         * @return the exception which caused the operation to fail on this host, or
+         *         null if it succeeded
+         */
+        public Throwable getFailure() {
+            return failure;
+        }
+
+        /**
+         * @return the time spent on this host, in milliseconds
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        @Override
+        public String toString() {
+            return host + " - " + (failure == null ? "OK" : failure.getMessage()) + " (" + duration + " ms)";
+        }
+    }
+
+    private final String operation;
+    private final List<HostResult> results = new ArrayList<HostResult>();
+
+    FleetResult(String operation) {
+        this.operation = operation;
+    }
+
+    void add(HostResult result) {
+        results.add(result);
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    /**
+     * @return the result for each host, in the order in which the hosts were
+     *         given
+     */
+    public List<HostResult> getResults() {
+        return Collections.unmodifiableList(results);
+    }
+
+    public List<HostResult> getFailures() {
+        List<HostResult> failures = new ArrayList<HostResult>();
+        for (HostResult result : results) {
+            if (!result.isSuccess()) {
+                failures.add(result);
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * @return true if the operation succeeded on all hosts
+     */
+    public boolean isSuccess() {
+        return getFailures().isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(operation).append(": ");
+        sb.append(results.size() - getFailures().size()).append(" of ").append(results.size())
+                .append(" hosts succeeded");
+        for (HostResult result : results) {
+            sb.append("\n - ").append(result);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,214 @@
+package riot.riotctl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import riot.riotctl.internal.Manifest;
+
+/**
+ * Builds the {@link Manifest} of a stage directory without rehashing the files
+ * which haven't changed since the last time. The size, modification time and
+ * hash of every file are kept in an index file next to the stage directory, and
+ * only files whose size or modification time differ from it are hashed again,
+ * in parallel.
+ * <p>
+ * A file modified within a moment of being indexed might change again without
+ * its modification time changing, so such files are left out of the index, and
+ * hashed again next time.
+ */
+public class HashIndex {
+    /** The granularity of modification times on common file systems */
+    private static final long MTIME_GRANULARITY = 2000;
+
+    private static class Entry {
+        final String path;
+        final long size, mtime;
+        String hash;
+
+        Entry(String path, long size, long mtime, String hash) {
+            this.path = path;
+            this.size = size;
+            this.mtime = mtime;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Hashes a range of files, splitting it until there's one file per task
+     */
+    private static class HashTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final File dir;
+        private final List<Entry> entries;
+        private final int from, to;
+
+        HashTask(File dir, List<Entry> entries, int from, int to) {
+            this.dir = dir;
+            this.entries = entries;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                final int mid = (from + to) >>> 1;
+                invokeAll(new HashTask(dir, entries, from, mid), new HashTask(dir, entries, mid, to));
+                return;
+            }
+            final Entry entry = entries.get(from);
+            try {
+                entry.hash = Manifest.hash(new File(dir, entry.path));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private final File stageDir;
+    private final File indexFile;
+    private final ForkJoinPool pool;
+    private int hashed = 0;
+
+    /**
+     * Creates the index of a stage directory, which is kept in a file next to it
+     */
+    public HashIndex(File stageDir) {
+        this(stageDir, new File(stageDir.getAbsoluteFile().getParentFile(), '.' + stageDir.getName() + ".hashindex"));
+    }
+
+    /**
+     * @param stageDir
+     *            the directory whose files are indexed
+     * @param indexFile
+     *            the file in which the index is kept
+     */
+    public HashIndex(File stageDir, File indexFile) {
+        this(stageDir, indexFile, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param pool
+     *            the pool on which files are hashed
+     */
+    public HashIndex(File stageDir, File indexFile, ForkJoinPool pool) {
+        this.stageDir = stageDir;
+        this.indexFile = indexFile;
+        this.pool = pool;
+    }
+
+    /**
+     * Builds the manifest of the stage directory, hashing only the files which
+     * have changed since the index was last updated, and updates the index.
+     *
+     * @throws IOException
+     *             if the directory or one of its files can't be read
+     */
+    public Manifest update() throws IOException {
+        if (!stageDir.isDirectory()) {
+            throw new IOException(stageDir + " is not a directory");
+        }
+        final Map<String, Entry> previous = load();
+        final List<Entry> entries = scan();
+        final List<Entry> changed = new ArrayList<Entry>();
+        for (Entry entry : entries) {
+            final Entry known = previous.get(entry.path);
+            if (known != null && known.size == entry.size && known.mtime == entry.mtime) {
+                entry.hash = known.hash;
+            } else {
+                changed.add(entry);
+            }
+        }
+
+        if (!changed.isEmpty()) {
+            try {
+                pool.invoke(new HashTask(stageDir, changed, 0, changed.size()));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        hashed = changed.size();
+
+        final Manifest manifest = new Manifest();
+        for (Entry entry : entries) {
+            manifest.add(new Manifest.Entry(entry.path, entry.size, entry.hash));
+        }
+        save(entries);
+        return manifest;
+    }
+
+    /**
+     * @return the number of files which the last update had to hash
+     */
+    public int getHashed() {
+        return hashed;
+    }
+
+    private List<Entry> scan() throws IOException {
+        final Path root = stageDir.toPath();
+        final List<Entry> entries = new ArrayList<Entry>();
+        Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+                new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        if (attrs.isRegularFile()) {
+                            entries.add(new Entry(root.relativize(file).toString().replace(File.separatorChar, '/'),
+                                    attrs.size(), attrs.lastModifiedTime().toMillis(), null));
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+        return entries;
+    }
+
+    private Map<String, Entry> load() {
+        final Map<String, Entry> entries = new HashMap<String, Entry>();
+        if (!indexFile.isFile()) {
+            return entries;
+        }
+        try {
+            for (String line : Files.readAllLines(indexFile.toPath(), StandardCharsets.UTF_8)) {
+                final String[] fields = line.split(" ", 4);
+                if (fields.length == 4) {
+                    entries.put(fields[3],
+                            new Entry(fields[3], Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2]));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Just hash everything again
+            entries.clear();
+        }
+        return entries;
+    }
+
+    private void save(List<Entry> entries) throws IOException {
+        final long racy = System.currentTimeMillis() - MTIME_GRANULARITY;
+        final StringBuilder sb = new StringBuilder();
+        for (Entry entry : entries) {
+            if (entry.mtime < racy) {
+                sb.append(entry.size).append(' ').append(entry.mtime).append(' ').append(entry.hash).append(' ')
+                        .append(entry.path).append('\n');
+            }
+        }
+        final File tmpFile = new File(indexFile.getPath() + ".tmp");
+        Files.write(tmpFile.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,232 @@
+package riot.riotctl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.KeyPair;
+
+import riot.riotctl.FleetResult.HostResult;
+import riot.riotctl.RelayPlan.Hop;
+import riot.riotctl.internal.Deployer;
+import riot.riotctl.internal.Manifest;
+import riot.riotctl.internal.PackageConfig;
+import riot.riotctl.internal.SSHClient;
+
+/**
+ * Copies a deployed package from the hosts it was deployed to onto other hosts,
+ * over SSH connections between the hosts themselves. The package thus crosses
+ * the link from the build machine only once per seed, and the rest of the
+ * fleet is served over the local network.
+ * <p>
+ * For the hosts to connect to each other, a key pair is generated for the
+ * duration of the distribution. Its public key is authorized on all hosts, and
+ * its private key given to all of them, as every host which has received the
+ * package passes it on in the next round. Both are removed again at the end.
+ * <p>
+ * Hosts which already have the package, according to their manifest, are
+ * left alone.
+ */
+class RelayDistributor {
+    private static final int MAX_ATTEMPTS = 2;
+    private static final String SSH_OPTIONS = "-o BatchMode=yes -o StrictHostKeyChecking=no"
+            + " -o UserKnownHostsFile=/dev/null -o ConnectTimeout=10 -o LogLevel=ERROR";
+
+    private final Logger log;
+    private final int maxConcurrency;
+    private final long hostTimeout;
+
+    RelayDistributor(Logger log, int maxConcurrency, long hostTimeout) {
+        this.log = log;
+        this.maxConcurrency = maxConcurrency;
+        this.hostTimeout = hostTimeout;
+    }
+
+    /**
+     * @param seeds
+     *            the hosts to which the package was deployed
+     * @param targets
+     *            the hosts to which it should be copied
+     * @param packageName
+     *            the package's name
+     * @param releaseId
+     *            the name of the release which was deployed, or null if the
+     *            package isn't versioned
+     * @param manifest
+     *            the manifest of the package
+     * @param unchanged
+     *            where to add the targets which already had the package, and
+     *            thus didn't get it again
+     * @return the outcome for each target
+     */
+    FleetResult distribute(List<SSHClient> seeds, List<SSHClient> targets, String packageName, String releaseId,
+            Manifest manifest, List<SSHClient> unchanged) {
+        final FleetExecutor executor = new FleetExecutor(log, maxConcurrency, hostTimeout);
+        final Map<SSHClient, HostResult> outcomes = new HashMap<SSHClient, HostResult>();
+
+        final Set<SSHClient> upToDate = ConcurrentHashMap.newKeySet();
+        final FleetResult checkResult = executor.execute("relay check", targets, SSHClient::getHost, client -> {
+            final PackageConfig pkgConf = new PackageConfig(packageName, client.getUsername(), releaseId != null);
+            final Manifest previous = Manifest.parse(client.read(pkgConf.getManifestFileName(), true));
+            if (!previous.isEmpty() && manifest.changedFrom(previous).isEmpty()
+                    && manifest.removedFrom(previous).isEmpty()) {
+                upToDate.add(client);
+            }
+        });
+        final List<SSHClient> pending = new ArrayList<SSHClient>();
+        for (int i = 0; i < targets.size(); i++) {
+            final SSHClient target = targets.get(i);
+            final HostResult result = checkResult.getResults().get(i);
+            if (!result.isSuccess()) {
+                outcomes.put(target, new HostResult(name(target), result.getFailure(), result.getDuration()));
+            } else if (upToDate.contains(target)) {
+                log.info("No files have changed since last deployment to " + name(target));
+                outcomes.put(target, new HostResult(name(target), null, result.getDuration()));
+                unchanged.add(target);
+            } else {
+                pending.add(target);
+            }
+        }
+        if (!pending.isEmpty()) {
+            relay(seeds, pending, packageName, releaseId, manifest.getSize(), executor, outcomes);
+        }
+
+        final FleetResult result = new FleetResult("relay");
+        for (SSHClient target : targets) {
+            result.add(outcomes.get(target));
+        }
+        return result;
+    }
+
+    /**
+     * Relays the package to the targets, in as many rounds as it takes
+     *
+     * @param outcomes
+     *            where to record the outcome for each target
+     */
+    private void relay(List<SSHClient> seeds, List<SSHClient> targets, String packageName, String releaseId,
+            long size, FleetExecutor executor, Map<SSHClient, HostResult> outcomes) {
+        final String keyName = ".riotctl-relay-" + UUID.randomUUID();
+        final List<SSHClient> hosts = new ArrayList<SSHClient>(seeds);
+        hosts.addAll(targets);
+        try {
+            final String setup = getSetupCommand(keyName);
+            final FleetResult setupResult = executor.execute("relay setup", hosts, SSHClient::getHost,
+                    client -> client.exec(setup, true));
+            final List<SSHClient> readySeeds = new ArrayList<SSHClient>();
+            final List<SSHClient> readyTargets = new ArrayList<SSHClient>();
+            for (int i = 0; i < hosts.size(); i++) {
+                final HostResult result = setupResult.getResults().get(i);
+                if (i >= seeds.size() && !result.isSuccess()) {
+                    outcomes.put(hosts.get(i), result);
+                } else if (result.isSuccess()) {
+                    (i < seeds.size() ? readySeeds : readyTargets).add(hosts.get(i));
+                }
+            }
+
+            final RelayPlan<SSHClient> plan = new RelayPlan<SSHClient>(readySeeds, readyTargets, MAX_ATTEMPTS);
+            for (int round = 1; !plan.isDone(); round++) {
+                final List<Hop<SSHClient>> hops = plan.nextRound();
+                log.info("Relaying " + packageName + ", round " + round + ": " + hops.size() + " hops");
+                final FleetResult result = executor.execute("relay", hops,
+                        hop -> name(hop.source) + " -> " + name(hop.target),
+                        hop -> relay(hop, packageName, releaseId, keyName, size));
+                for (int i = 0; i < hops.size(); i++) {
+                    final HostResult hopResult = result.getResults().get(i);
+                    plan.completed(hops.get(i), hopResult.isSuccess());
+                    outcomes.put(hops.get(i).target, new HostResult(name(hops.get(i).target),
+                            hopResult.getFailure(), hopResult.getDuration()));
+                }
+            }
+            for (SSHClient target : plan.getFailed()) {
+                outcomes.putIfAbsent(target, new HostResult(name(target),
+                        new IOException("No host was able to relay the package"), 0));
+            }
+        } catch (JSchException e) {
+            log.error("Unable to create a key pair for relaying: " + e.getMessage());
+            for (SSHClient target : targets) {
+                outcomes.put(target, new HostResult(name(target), e, 0));
+            }
+        } finally {
+            final String cleanup = "rm -f \"$HOME\"/" + keyName + "; sed -i '/" + keyName
+                    + "/d' \"$HOME\"/.ssh/authorized_keys";
+            executor.execute("relay cleanup", hosts, SSHClient::getHost, client -> client.exec(cleanup, true));
+        }
+    }
+
+    private static String name(SSHClient client) {
+        return client.getHost() + (client.getPort() == SSHClient.DEFAULT_PORT ? "" : ":" + client.getPort());
+    }
+
+    /**
+     * @return the command which authorizes the relay's public key, and stores its
+     *         private key
+     */
+    private static String getSetupCommand(String keyName) throws JSchException {
+        final KeyPair keyPair = KeyPair.genKeyPair(new JSch(), KeyPair.RSA, 2048);
+        final ByteArrayOutputStream privateKey = new ByteArrayOutputStream();
+        final ByteArrayOutputStream publicKey = new ByteArrayOutputStream();
+        keyPair.writePrivateKey(privateKey);
+        keyPair.writePublicKey(publicKey, keyName);
+        keyPair.dispose();
+
+        final String authorizedKey = new String(publicKey.toByteArray(), StandardCharsets.US_ASCII).trim();
+        return "umask 077 && mkdir -p \"$HOME\"/.ssh" //
+                + " && printf '%s\\n' " + SSHClient.quote(authorizedKey) + " >> \"$HOME\"/.ssh/authorized_keys" //
+                + " && printf '%s' " + SSHClient.quote(new String(privateKey.toByteArray(), StandardCharsets.US_ASCII))
+                + " > \"$HOME\"/" + keyName;
+    }
+
+    /**
+     * Copies the package from the source of a hop to its target, streaming it as
+     * a tar archive through an SSH connection between the two
+     */
+    private void relay(Hop<SSHClient> hop, String packageName, String releaseId, String keyName, long size)
+            throws IOException {
+        final SSHClient target = hop.target;
+        final PackageConfig pkgConf = new PackageConfig(packageName, target.getUsername(), releaseId != null);
+        final String archive;
+        final String extract;
+        if (pkgConf.versioned) {
+            // Copy the current release only, and make it the current one on the target
+            final String dir = SSHClient.quote(pkgConf.getReleaseDir(releaseId));
+            archive = "tar -C " + SSHClient.quote(pkgConf.getCurrentDir()) + "/ -cf - .";
+            extract = "sudo mkdir -p " + dir + " && sudo tar -x -C " + dir + " && "
+                    + Deployer.getActivateCommand(pkgConf, releaseId);
+        } else {
+            // The target's packages are checked separately, so don't mark them as
+            // installed
+            final String dir = SSHClient.quote(pkgConf.binDir);
+            final String deplistName = pkgConf.getDeplistFileName().substring(pkgConf.binDir.length() + 1);
+            archive = "tar -C " + dir + " --exclude=" + SSHClient.quote("./" + deplistName) + " -cf - .";
+            // Extract next to the directory and swap it in, so that files which
+            // were removed from the package don't linger on the target, while
+            // keeping its own list of installed packages
+            final String tmp = SSHClient.quote(pkgConf.binDir + ".relay");
+            final String old = SSHClient.quote(pkgConf.binDir + ".old");
+            final String deplist = SSHClient.quote(pkgConf.getDeplistFileName());
+            final String script = "rm -rf " + tmp + ' ' + old + " && mkdir -p " + tmp + " && tar -x -C " + tmp
+                    + " && if [ -f " + deplist + " ]; then cp -p " + deplist + ' ' + tmp + "/; fi" //
+                    + " && if [ -d " + dir + " ]; then mv " + dir + ' ' + old + "; fi" //
+                    + " && mv " + tmp + ' ' + dir + " && rm -rf " + old;
+            extract = "sudo sh -c " + SSHClient.quote(script);
+        }
+
+        final long start = System.nanoTime();
+        hop.source.exec(archive + " | ssh -i \"$HOME\"/" + keyName + " -p " + target.getPort() + ' ' + SSH_OPTIONS
+                + ' ' + SSHClient.quote(target.getUsername() + '@' + target.getHost()) + ' '
+                + SSHClient.quote(extract), true);
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        log.info(String.format("Relayed %s from %s to %s: %.1f MB in %.1f s, %.1f MB/s", packageName,
+                name(hop.source), name(target), size / 1e6, seconds, size / 1e6 / seconds));
+    }
+}
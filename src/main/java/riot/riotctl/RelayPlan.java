@@ -0,0 +1,85 @@
+package riot.riotctl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Plans the hops by which a payload is relayed from a few seed hosts to all
+ * others. In every round, each host which has the payload passes it on to one
+ * which hasn't, so the number of hosts which have it doubles with every round.
+ * A host to which a hop failed is tried again from another source in the next
+ * round, up to a maximum number of attempts.
+ */
+class RelayPlan<T> {
+
+    static class Hop<T> {
+        final T source, target;
+
+        Hop(T source, T target) {
+            this.source = source;
+            this.target = target;
+        }
+    }
+
+    private final List<T> holders;
+    private final Deque<T> pending;
+    private final List<T> failed = new ArrayList<T>();
+    private final Map<T, Integer> attempts = new HashMap<T, Integer>();
+    private final int maxAttempts;
+    private int nextSource = 0;
+
+    RelayPlan(Collection<T> seeds, Collection<T> targets, int maxAttempts) {
+        this.holders = new ArrayList<T>(seeds);
+        this.pending = new ArrayDeque<T>(targets);
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * @return the hops to run concurrently in the next round, or an empty list if
+     *         there are no more targets or no more sources
+     */
+    List<Hop<T>> nextRound() {
+        final List<Hop<T>> hops = new ArrayList<Hop<T>>();
+        for (int i = 0; i < holders.size() && !pending.isEmpty(); i++) {
+            // Rotate the sources, so that a retry comes from another one
+            hops.add(new Hop<T>(holders.get((nextSource + i) % holders.size()), pending.poll()));
+        }
+        nextSource++;
+        return hops;
+    }
+
+    /**
+     * Records the outcome of a hop. A target which received the payload becomes
+     * a source in the following rounds.
+     */
+    void completed(Hop<T> hop, boolean success) {
+        if (success) {
+            holders.add(hop.target);
+            return;
+        }
+        int count = attempts.merge(hop.target, 1, Integer::sum);
+        if (count < maxAttempts) {
+            pending.add(hop.target);
+        } else {
+            failed.add(hop.target);
+        }
+    }
+
+    boolean isDone() {
+        return pending.isEmpty() || holders.isEmpty();
+    }
+
+    /**
+     * @return the targets which couldn't be reached by any hop
+     */
+    List<T> getFailed() {
+        final List<T> result = new ArrayList<T>(failed);
+        result.addAll(pending);
+        return result;
+    }
+}
@@ -2,99 +2,359 @@ package riot.riotctl;
 
 import java.io.File;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
+import riot.riotctl.FleetResult.HostResult;
 import riot.riotctl.Target.DiscoveryMethod;
 import riot.riotctl.discovery.BonjourProbe;
+import riot.riotctl.discovery.DeviceRegistry;
+import riot.riotctl.discovery.DiscoveryCache;
 import riot.riotctl.discovery.DiscoveryUtil;
 import riot.riotctl.discovery.HostInfo;
+import riot.riotctl.internal.CommandResult;
+import riot.riotctl.internal.Deployer;
+import riot.riotctl.internal.Manifest;
 import riot.riotctl.internal.PackageConfig;
+import riot.riotctl.internal.PipelineStats;
 import riot.riotctl.internal.ProxyServer;
 import riot.riotctl.internal.SSHClient;
+import riot.riotctl.internal.TransferScheduler;
 import riot.riotctl.logger.StdOutLogger;
 
 public class RiotCtlTool {
-    private static final SimpleDateFormat TIMEDATECTL_FMT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    private static final String TIME_UNSYNCHRONIZED_CMD = "timedatectl | grep -q 'synchronized: no'";
+    private static final DateTimeFormatter TIMEDATECTL_FMT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
     public static final String PARAM_VERBOSE = "-v";
     public static final String PARAM_ADD_UNSUPPORTED_MODULES = "-J--add-modules=jdk.unsupported";
 
+    private static final int DEFAULT_MAX_CONCURRENCY = 8;
+    private static final int CONNECT_TIMEOUT = 15000;
+    /** How long the stage directory must be left alone before changes are pushed */
+    private static final long WATCH_DEBOUNCE = 300;
+    /** How long {@link #discover(Logger)} looks for devices, in milliseconds */
+    private static final long DISCOVERY_TIMEOUT = 3000;
+    /** Sends the service's main process a SIGHUP */
+    private static final String DEFAULT_RELOAD_COMMAND = "/bin/kill -HUP $MAINPID";
+
     private final List<SSHClient> clients = new ArrayList<SSHClient>();
     private final String packageName;
     private final File stageDir;
     private final Logger log;
+    private final TransferScheduler scheduler;
+    private int maxConcurrency = DEFAULT_MAX_CONCURRENCY;
+    private long hostTimeout = 0;
+    private FleetResult lastResult;
+    private PipelineStats lastStats;
+    private boolean sharedStore = false;
+    private int relaySeeds = 0;
+    private boolean versioned = false;
+    private boolean hotReload = false;
+    private String reloadCommand = DEFAULT_RELOAD_COMMAND;
 
     public RiotCtlTool(String packageName, File stageDir, List<Target> targets, Logger log) {
+        this(packageName, stageDir, targets, log, (DiscoveryCache) null);
+    }
+
+    /**
+     * Finds the targets in a registry of the devices which are online, so that
+     * they needn't be discovered again. Only targets which the registry doesn't
+     * know are discovered. {@link DeviceRegistry#getTargets(String, String)}
+     * makes targets of all devices which are online.
+     */
+    public RiotCtlTool(String packageName, File stageDir, List<Target> targets, Logger log,
+            DeviceRegistry registry) {
         super();
         this.packageName = packageName;
         this.stageDir = stageDir;
         this.log = log;
+        this.scheduler = new TransferScheduler(log);
 
-        for (HostInfo hostinfo : DiscoveryUtil.discoverHostnames(log, targets)) {
-            try {
-                clients.add(new SSHClient(hostinfo, log));
-            } catch (IOException e) {
-                log.error(hostinfo.getHost().getHostName() + " - " + e.getMessage());
+        final List<Target> missing = new ArrayList<Target>();
+        final List<HostInfo> hosts = registry.lookup(targets, missing);
+        if (!missing.isEmpty()) {
+            log.info(missing.size() + " of " + targets.size() + " targets aren't in the device registry");
+            hosts.addAll(DiscoveryUtil.discoverHostnames(log, missing));
+        }
+        connect(hosts);
+    }
+
+    /**
+     * Finds the targets through a cache of where they were found before, which
+     * saves looking them up again on every run. Targets which can't be reached
+     * at their cached addresses are discovered again.
+     *
+     * @param cache
+     *            the discovery cache, or null to discover all targets
+     */
+    public RiotCtlTool(String packageName, File stageDir, List<Target> targets, Logger log, DiscoveryCache cache) {
+        super();
+        this.packageName = packageName;
+        this.stageDir = stageDir;
+        this.log = log;
+        this.scheduler = new TransferScheduler(log);
+
+        final List<HostInfo> hosts = DiscoveryUtil.discoverHostnames(log, targets, cache);
+        final List<HostInfo> failed = connect(hosts);
+        if (cache == null) {
+            return;
+        }
+        updateReachability(cache, hosts, failed);
+        // Only the cached addresses may be outdated, the others were just found
+        final List<Target> outdated = new ArrayList<Target>();
+        for (HostInfo hostinfo : failed) {
+            final Target target = hostinfo.getTarget();
+            if (hostinfo.getResolveTime() == DiscoveryCache.CACHED && !outdated.contains(target)
+                    && Boolean.FALSE.equals(cache.get(target.getDevicename()).isReachable())) {
+                outdated.add(target);
+            }
+        }
+        if (!outdated.isEmpty()) {
+            log.info("Looking for " + outdated.size() + " hosts again, which couldn't be reached at their cached"
+                    + " addresses");
+            final List<HostInfo> found = DiscoveryUtil.discoverHostnames(log, outdated, cache);
+            updateReachability(cache, found, connect(found));
+        }
+        try {
+            cache.save();
+        } catch (IOException e) {
+            log.warn("Couldn't save the discovery cache: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Records which devices could be reached at any of their addresses
+     */
+    private static void updateReachability(DiscoveryCache cache, List<HostInfo> hosts, List<HostInfo> failed) {
+        final Map<String, Boolean> reachable = new HashMap<String, Boolean>();
+        for (HostInfo hostinfo : hosts) {
+            reachable.merge(hostinfo.getTarget().getDevicename(), !failed.contains(hostinfo), Boolean::logicalOr);
+        }
+        reachable.forEach(cache::setReachable);
+    }
+
+    /**
+     * Opens sessions to all hosts concurrently, and reports those that couldn't
+     * be reached in a single summary.
+     *
+     * @return the hosts which couldn't be reached
+     */
+    private List<HostInfo> connect(List<HostInfo> hosts) {
+        final Map<HostInfo, SSHClient> sessions = new ConcurrentHashMap<HostInfo, SSHClient>();
+        final List<HostInfo> failed = new ArrayList<HostInfo>();
+        final FleetExecutor executor = new FleetExecutor(log, maxConcurrency, 0);
+        executor.execute("connect", hosts, hostinfo -> hostinfo.getHost().getHostName(),
+                hostinfo -> sessions.put(hostinfo, new SSHClient(hostinfo, log, CONNECT_TIMEOUT)));
+        for (HostInfo hostinfo : hosts) {
+            if (sessions.containsKey(hostinfo)) {
+                final SSHClient client = sessions.get(hostinfo);
+                final long rateLimit = hostinfo.getTarget() == null ? 0 : hostinfo.getTarget().getRateLimit();
+                client.setThrottle(scheduler.forHost(client.getHost(), rateLimit));
+                clients.add(client);
+            } else {
+                failed.add(hostinfo);
             }
         }
+        return failed;
+    }
+
+    /**
+     * Sets the maximum number of hosts on which an operation runs at once
+     */
+    public RiotCtlTool setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        return this;
+    }
+
+    /**
+     * Sets the time limit for an operation on a single host, after which it is
+     * interrupted and reported as failed.
+     * 
+     * @param hostTimeout
+     *            the time limit in milliseconds, or 0 for none
+     */
+    public RiotCtlTool setHostTimeout(long hostTimeout) {
+        this.hostTimeout = hostTimeout;
+        return this;
+    }
+
+    /**
+     * Limits the combined rate at which files are uploaded to all hosts, on top
+     * of the limits of the individual targets. Small control files, such as the
+     * service's unit, are sent ahead of bulk uploads.
+     * 
+     * @param rateLimit
+     *            the rate in bytes per second, or 0 for no limit
+     */
+    public RiotCtlTool setRateLimit(long rateLimit) {
+        scheduler.setGlobalRate(rateLimit);
+        return this;
+    }
+
+    /**
+     * Keeps the libraries (jar files) of deployed packages in a store on each
+     * device, which is shared by all packages. Libraries which another package
+     * already uses are then neither uploaded nor stored again.
+     */
+    public RiotCtlTool setSharedStore(boolean sharedStore) {
+        this.sharedStore = sharedStore;
+        return this;
+    }
+
+    /**
+     * Deploys each version of the package into a release directory of its own,
+     * and switches over to it in a single step once it is complete. The service
+     * is then restarted if it is running, and can be switched back with
+     * {@link #rollback()}.
+     */
+    public RiotCtlTool setVersionedReleases(boolean versioned) {
+        this.versioned = versioned;
+        return this;
+    }
+
+    /**
+     * Makes {@link #watch(String...)} reload the service after pushing changes,
+     * rather than restart it. The service is sent a SIGHUP, unless
+     * {@link #setReloadCommand(String)} says otherwise, so this is for
+     * applications which reload their code or configuration on that signal.
+     * Only services installed with this set can be reloaded.
+     */
+    public RiotCtlTool setHotReload(boolean hotReload) {
+        this.hotReload = hotReload;
+        return this;
+    }
+
+    /**
+     * @param reloadCommand
+     *            the command with which systemd reloads the service if
+     *            {@link #setHotReload(boolean)} is set, instead of sending it a
+     *            SIGHUP
+     */
+    public RiotCtlTool setReloadCommand(String reloadCommand) {
+        this.reloadCommand = reloadCommand;
+        return this;
+    }
+
+    /**
+     * Deploys to large fleets by uploading packages to only a few hosts, the
+     * seeds, which then relay them to the other hosts over the local network.
+     * The number of hosts which have the package doubles with every round of
+     * relaying.
+     * 
+     * @param relaySeeds
+     *            the number of hosts to which packages are uploaded directly, or
+     *            0 to upload them to all hosts directly
+     */
+    public RiotCtlTool setRelaySeeds(int relaySeeds) {
+        this.relaySeeds = Math.max(0, relaySeeds);
+        return this;
+    }
+
+    /**
+     * @return the outcome of the last operation on each host, or null if no
+     *         operation was run yet
+     */
+    public FleetResult getLastResult() {
+        return lastResult;
+    }
+
+    /**
+     * @return how long the stages of the last deployment took, or null if
+     *         nothing was deployed yet
+     */
+    public PipelineStats getLastPipelineStats() {
+        return lastStats;
+    }
+
+    /**
+     * Runs an operation on all connected hosts concurrently
+     */
+    private FleetResult onAllClients(String operation, FleetExecutor.HostTask<SSHClient> task) {
+        lastResult = onClients(operation, new ArrayList<SSHClient>(clients), task);
+        return lastResult;
+    }
+
+    private FleetResult onClients(String operation, List<SSHClient> hosts, FleetExecutor.HostTask<SSHClient> task) {
+        final FleetExecutor executor = new FleetExecutor(log, maxConcurrency, hostTimeout);
+        return executor.execute(operation, hosts, SSHClient::getHost, task);
     }
 
     public RiotCtlTool ensurePackages(String dependencies) {
         if (dependencies == null || dependencies.trim().length() < 1)
             return this;
 
-        for (SSHClient client : clients) {
-            try {
-                PackageConfig pkgConf = new PackageConfig(packageName, client.getUsername());
-                String[] lastCheckedPkg = client.read(pkgConf.getDeplistFileName(), true).split("\\s+");
-
-                if (hasSamePackages(lastCheckedPkg, dependencies.split("\\s+"))) {
-                    log.info("Dependencies unchanged since last install, skipping check on " + client.getHost());
-                    continue;
-                }
+        onAllClients("ensurePackages", client -> {
+            PackageConfig pkgConf = new PackageConfig(packageName, client.getUsername());
+            // Check the last installed packages and the age of the package list at once. Neither file
+            // existing yet is expected, rather than an error to report.
+            List<CommandResult> checks = client.execBatch(Arrays.asList(
+                    "cat " + pkgConf.getDeplistFileName() + " 2>/dev/null",
+                    "find /var/cache/apt/pkgcache.bin -mtime +30 2>/dev/null | egrep '.*'"));
+            String[] lastCheckedPkg = checks.get(0).stdout.trim().split("\\s+");
+
+            if (hasSamePackages(lastCheckedPkg, dependencies.split("\\s+"))) {
+                log.info("Dependencies unchanged since last install, skipping check on " + client.getHost());
+                return;
+            }
 
-                log.info("Checking dependencies " + dependencies + " on " + client.getHost());
-                final ProxyServer proxy = ProxyServer.ensureProxy(8080, log);
-                client.setProxy(proxy);
-
-                String aptOptions = "-y";
-                aptOptions += " -o Acquire::http::proxy=\"socks5h://localhost:" + proxy.getPort() + "\"";
-                aptOptions += " -o Acquire::http::No-Cache=true";
-                aptOptions += " -o Acquire::http::Pipeline-Depth=0";
-                aptOptions += " -o Acquire::Queue-Mode=access";
-                aptOptions += " -o Acquire::Retries=10";
-                // aptOptions += " -o Acquire::BrokenProxy=true";
-
-                final String aptUpdateCmd = "sudo DEBIAN_FRONTEND=noninteractive apt-get " + aptOptions + " update";
-                final String aptInstallCmd = "sudo DEBIAN_FRONTEND=noninteractive apt-get " + aptOptions
-                        + " install -m " + dependencies;
-
-                // Update package list if it's over a month old:
-                int updRc = client.exec("find /var/cache/apt/pkgcache.bin -mtime +30 | egrep '.*'", false);
-                if (updRc != 0) {
-                    // File doesn't exist, or is more than 30 days old.
-                    log.info("Updating package list");
-                    client.exec(aptUpdateCmd, true);
-                }
+            log.info("Checking dependencies " + dependencies + " on " + client.getHost());
+            final ProxyServer proxy = ProxyServer.ensureProxy(8080, log);
+            client.setProxy(proxy);
+
+            String aptOptions = "-y";
+            aptOptions += " -o Acquire::http::proxy=\"socks5h://localhost:" + proxy.getPort() + "\"";
+            aptOptions += " -o Acquire::http::No-Cache=true";
+            aptOptions += " -o Acquire::http::Pipeline-Depth=0";
+            aptOptions += " -o Acquire::Queue-Mode=access";
+            aptOptions += " -o Acquire::Retries=10";
+            // aptOptions += " -o Acquire::BrokenProxy=true";
+
+            final String aptUpdateCmd = "sudo DEBIAN_FRONTEND=noninteractive apt-get " + aptOptions + " update";
+            final String aptInstallCmd = "sudo DEBIAN_FRONTEND=noninteractive apt-get " + aptOptions
+                    + " install -m " + dependencies;
+
+            // Update package list if it's over a month old:
+            if (!checks.get(1).isSuccess()) {
+                // File doesn't exist, or is more than 30 days old.
+                log.info("Updating package list");
+                client.exec(aptUpdateCmd, true);
+            }
 
-                // Update the packages:
-                client.exec(aptInstallCmd, true, true);
-                client.mkDir(pkgConf.runDir);
-                client.write(dependencies, pkgConf.getDeplistFileName());
+            // Update the packages:
+            client.exec(aptInstallCmd, true, true);
+            client.mkDir(pkgConf.runDir);
+            // Before the first deployment, the list is the first file in the directory
+            client.mkDir(pkgConf.binDir);
+            client.write(dependencies, pkgConf.getDeplistFileName());
 
-                client.resetProxy();
-            } catch (IOException e) {
-                e.printStackTrace();
-                log.error(e.getMessage());
-            }
-        }
+            client.resetProxy();
+        });
         return this;
     }
 
@@ -126,58 +386,65 @@ public class RiotCtlTool {
             setCmds.add("sudo raspi-config nonint do_onewire 0");
         }
 
-        for (SSHClient client : clients) {
+        onAllClients("ensureEnabled", client -> {
+            // Check the clock and all features in a single round-trip
+            List<String> checks = new ArrayList<String>(getCmds);
+            if (time) {
+                checks.add(0, TIME_UNSYNCHRONIZED_CMD);
+            }
+            if (checks.isEmpty()) {
+                return;
+            }
+            List<CommandResult> results = client.execBatch(checks);
+
             // Set internal clock
             if (time) {
-                ensureCurrentTime(client);
+                ensureCurrentTime(client, results.remove(0).isSuccess());
             }
             // Enable features
             if (features.size() > 0) {
                 log.info("Ensuring features are enabled on " + client.getHost() + ": " + String.join(", ", features));
+                List<String> missing = new ArrayList<String>(features.size());
+                List<String> enableCmds = new ArrayList<String>(features.size());
                 for (int i = 0; i < features.size(); i++) {
-                    try {
-                        int rc = client.exec(getCmds.get(i), false);
-                        if (rc != 0) {
-                            rc = client.exec(setCmds.get(i), false);
-                            if (rc != 0) {
-                                log.error("Unable to enable " + features.get(i) + " on " + client.getHost());
-                            } else {
-                                log.warn("Enabled " + features.get(i) + ", " + client.getHost()
-                                        + " may need to be rebooted!");
-                            }
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        log.error(e.getMessage());
+                    if (!results.get(i).isSuccess()) {
+                        missing.add(features.get(i));
+                        enableCmds.add(setCmds.get(i));
+                    }
+                }
+                List<CommandResult> enabled = client.execBatch(enableCmds);
+                for (int i = 0; i < enabled.size(); i++) {
+                    if (!enabled.get(i).isSuccess()) {
+                        log.error("Unable to enable " + missing.get(i) + " on " + client.getHost());
+                    } else {
+                        log.warn("Enabled " + missing.get(i) + ", " + client.getHost() + " may need to be rebooted!");
                     }
                 }
             }
-
-        }
+        });
         return this;
     }
 
-    private void ensureCurrentTime(SSHClient client) {
-        try {
-            int timeRc = client.exec("timedatectl | grep -q 'synchronized: no'", false);
-            if (timeRc == 0) {
-                int attempts = 5;
-                timeRc = client.exec("sudo timedatectl set-ntp 0 ", true);
-                timeRc = client.exec("sudo timedatectl set-time '" + TIMEDATECTL_FMT.format(new Date()) + "'", false);
-                while (timeRc != 0 && --attempts > 0) {
-                    log.info("Attempting again in 10 seconds...");
+    private void ensureCurrentTime(SSHClient client, boolean unsynchronized) throws IOException {
+        if (unsynchronized) {
+            int attempts = 5;
+            int timeRc = client.exec("sudo timedatectl set-ntp 0 ", true);
+            timeRc = client.exec("sudo timedatectl set-time '" + TIMEDATECTL_FMT.format(LocalDateTime.now()) + "'",
+                    false);
+            while (timeRc != 0 && --attempts > 0) {
+                log.info("Attempting again in 10 seconds...");
+                try {
                     Thread.sleep(10000);
-                    timeRc = client.exec("sudo timedatectl set-time '" + TIMEDATECTL_FMT.format(new Date()) + "'",
-                            false);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(e.getMessage());
                 }
-                log.info("Updated system clock");
-            } else {
-                log.debug("System clock is already synchronized");
+                timeRc = client.exec(
+                        "sudo timedatectl set-time '" + TIMEDATECTL_FMT.format(LocalDateTime.now()) + "'", false);
             }
-
-        } catch (IOException | InterruptedException e) {
-            e.printStackTrace();
-            log.error(e.getMessage());
+            log.info("Updated system clock");
+        } else {
+            log.debug("System clock is already synchronized");
         }
     }
 
@@ -192,23 +459,93 @@ public class RiotCtlTool {
     }
 
     public RiotCtlTool deploy(String... vmparams) {
-        for (Iterator<SSHClient> iterator = clients.iterator(); iterator.hasNext();) {
-            SSHClient client = iterator.next();
+        // The local files are hashed while the hosts are asked what they have
+        final PipelineStats stats = new PipelineStats();
+        final CompletableFuture<Manifest> manifest = CompletableFuture.supplyAsync(() -> {
+            final long start = System.nanoTime();
             try {
-                PackageConfig pkgConf = new PackageConfig(packageName, client.getUsername(), vmparams);
-                log.info("Deploying " + pkgConf.packageName + " to " + client.getHost());
-                client.copyDir(stageDir, pkgConf.binDir);
-                client.write(pkgConf.toSystemdFile(), pkgConf.getSystemdFileName());
-                client.exec("sudo systemctl daemon-reload", true);
+                final HashIndex index = new HashIndex(stageDir);
+                final Manifest result = index.update();
+                log.debug("Hashed " + index.getHashed() + " of " + result.getEntries().size() + " files in "
+                        + stageDir);
+                return result;
             } catch (IOException e) {
-                e.printStackTrace();
-                log.error(e.getMessage());
-                // No point in attempting to use this client, since copying failed: Close and
-                // remove connection.
+                throw new UncheckedIOException(e);
+            } finally {
+                stats.addTime("hash local files", System.nanoTime() - start);
+            }
+        });
+
+        // With relaying, only the seeds get the package from here, the others get
+        // it from them
+        final int seedCount = relaySeeds > 0 ? Math.min(relaySeeds, clients.size()) : clients.size();
+        final List<SSHClient> seeds = new ArrayList<SSHClient>(clients.subList(0, seedCount));
+        final List<SSHClient> others = new ArrayList<SSHClient>(clients.subList(seedCount, clients.size()));
+
+        // All hosts get the same release name
+        final String releaseId = Deployer.newReleaseId();
+        final FleetResult result = new FleetResult("deploy");
+        final FleetResult seedResult = onClients("deploy", seeds, client -> {
+            PackageConfig pkgConf = getPackageConfig(client, vmparams);
+            log.info("Deploying " + pkgConf.packageName + " to " + client.getHost());
+            client.setStats(stats);
+            boolean changed = new Deployer(client, log, sharedStore).deploy(stageDir, manifest, pkgConf, releaseId);
+            installService(client, pkgConf, changed, stats);
+        });
+        if (manifest.isCompletedExceptionally()) {
+            // Not the hosts' fault, so keep them, but nothing was deployed to any
+            final IOException failure = new IOException("Unable to read " + stageDir,
+                    manifest.handle((m, e) -> e.getCause()).join());
+            log.error(failure.getMessage());
+            for (SSHClient client : clients) {
+                result.add(new HostResult(client.getHost(), failure, 0));
+            }
+            lastResult = result;
+            lastStats = stats;
+            return this;
+        }
+        final List<SSHClient> relaySources = new ArrayList<SSHClient>();
+        for (int i = 0; i < seeds.size(); i++) {
+            result.add(seedResult.getResults().get(i));
+            if (seedResult.getResults().get(i).isSuccess()) {
+                relaySources.add(seeds.get(i));
+            }
+        }
+
+        if (!others.isEmpty()) {
+            final long start = System.nanoTime();
+            final List<SSHClient> unchanged = new ArrayList<SSHClient>();
+            final FleetResult relayResult = new RelayDistributor(log, maxConcurrency, hostTimeout).distribute(
+                    relaySources, others, packageName, versioned ? releaseId : null, manifest.join(), unchanged);
+            stats.addTime("relay", System.nanoTime() - start);
+            final List<SSHClient> relayed = new ArrayList<SSHClient>();
+            for (int i = 0; i < others.size(); i++) {
+                if (relayResult.getResults().get(i).isSuccess()) {
+                    relayed.add(others.get(i));
+                }
+            }
+            final FleetResult installResult = onClients("install", relayed, client -> installService(client,
+                    getPackageConfig(client, vmparams), !unchanged.contains(client), stats));
+            for (int i = 0, installed = 0; i < others.size(); i++) {
+                final HostResult hostResult = relayResult.getResults().get(i);
+                result.add(hostResult.isSuccess() ? installResult.getResults().get(installed++) : hostResult);
+            }
+        }
+        lastResult = result;
+        lastStats = stats;
+        log.info(stats.toString());
+
+        // No point in attempting to use clients on which copying failed: Close and
+        // remove their connection.
+        final List<HostResult> results = result.getResults();
+        final Iterator<SSHClient> iterator = clients.iterator();
+        for (int i = 0; i < results.size() && iterator.hasNext(); i++) {
+            SSHClient client = iterator.next();
+            if (!results.get(i).isSuccess()) {
                 try {
                     client.close();
-                } catch (IOException e1) {
-                    log.warn(e1.getMessage());
+                } catch (IOException e) {
+                    log.warn(e.getMessage());
                 }
                 iterator.remove();
             }
@@ -216,18 +553,183 @@ public class RiotCtlTool {
         return this;
     }
 
+    /**
+     * Deploys the package, and then keeps the hosts up to date with the stage
+     * directory until the thread is interrupted. Once a burst of changes to the
+     * directory has subsided, the files that changed are copied to all hosts
+     * over the open sessions, and the service is restarted, or reloaded if
+     * {@link #setHotReload(boolean)} is set. The time from the first change to
+     * the service running with it is logged for each host. Relay seeds are
+     * ignored, changes are copied to each host directly.
+     */
+    public RiotCtlTool watch(String... vmparams) {
+        deploy(vmparams);
+        try (WatchService watcher = stageDir.toPath().getFileSystem().newWatchService()) {
+            final Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+            register(watcher, stageDir.toPath(), keys);
+            log.info("Watching " + stageDir + " for changes");
+            while (true) {
+                WatchKey key = watcher.take();
+                final long firstChange = System.nanoTime();
+                while (key != null) {
+                    drain(watcher, key, keys);
+                    key = watcher.poll(WATCH_DEBOUNCE, TimeUnit.MILLISECONDS);
+                }
+                // The build may have deleted and recreated the whole directory
+                while (keys.isEmpty() || !stageDir.isDirectory()) {
+                    Thread.sleep(WATCH_DEBOUNCE);
+                    if (stageDir.isDirectory()) {
+                        register(watcher, stageDir.toPath(), keys);
+                    }
+                }
+                push(firstChange, vmparams);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            log.error("Unable to watch " + stageDir + ": " + e.getMessage());
+        }
+        return this;
+    }
+
+    /**
+     * Watches a directory and all its subdirectories
+     */
+    private void register(WatchService watcher, Path dir, Map<WatchKey, Path> keys) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path subdir, BasicFileAttributes attrs) throws IOException {
+                keys.put(subdir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), subdir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Consumes the events of a key, and watches the directories that were
+     * created
+     */
+    private void drain(WatchService watcher, WatchKey key, Map<WatchKey, Path> keys) throws IOException {
+        final Path dir = keys.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (dir != null && event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                final Path child = dir.resolve((Path) event.context());
+                if (Files.isDirectory(child)) {
+                    register(watcher, child, keys);
+                }
+            }
+        }
+        if (!key.reset()) {
+            keys.remove(key);
+        }
+    }
+
+    /**
+     * Copies the files that changed to all hosts, and restarts or reloads the
+     * service where anything was copied
+     */
+    private void push(long firstChange, String... vmparams) {
+        final Manifest manifest;
+        try {
+            manifest = new HashIndex(stageDir).update();
+        } catch (IOException e) {
+            log.error("Unable to read " + stageDir + ": " + e.getMessage());
+            return;
+        }
+        onAllClients("push", client -> {
+            PackageConfig pkgConf = getPackageConfig(client, vmparams);
+            if (!new Deployer(client, log, sharedStore).deploy(stageDir, manifest, pkgConf,
+                    Deployer.newReleaseId())) {
+                return;
+            }
+            client.exec("sudo systemctl " + (hotReload ? "reload-or-restart " : "restart ") + packageName, true);
+            log.info(String.format("Changes running on %s %d ms after they were made", client.getHost(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - firstChange)));
+        });
+    }
+
+    /**
+     * @return the configuration of the package on a host, as deployed by this
+     *         tool
+     */
+    private PackageConfig getPackageConfig(SSHClient client, String... vmparams) {
+        return new PackageConfig(packageName, client.getUsername(), versioned, vmparams)
+                .setReloadCommand(hotReload ? reloadCommand : null);
+    }
+
+    /**
+     * Installs the package's service. A new release of a versioned package is
+     * already current, so the service is restarted if it is running.
+     */
+    private void installService(SSHClient client, PackageConfig pkgConf, boolean changed, PipelineStats stats)
+            throws IOException {
+        final long start = System.nanoTime();
+        client.write(pkgConf.toSystemdFile(), pkgConf.getSystemdFileName());
+        client.exec("sudo systemctl daemon-reload", true);
+        if (pkgConf.versioned && changed) {
+            client.exec("sudo systemctl try-restart " + packageName, true);
+        }
+        stats.addTime("install service", System.nanoTime() - start);
+    }
+
+    /**
+     * Switches back to the previous release of the package on all hosts, and
+     * restarts it if it is running. This needs no file transfer, but is only
+     * possible for versioned releases.
+     */
+    public RiotCtlTool rollback() {
+        onAllClients("rollback", client -> {
+            PackageConfig pkgConf = new PackageConfig(packageName, client.getUsername(), true);
+            String release = new Deployer(client, log).rollback(pkgConf);
+            if (release == null) {
+                throw new IOException("No previous release of " + packageName + " found on " + client.getHost());
+            }
+            log.info("Rolled back " + packageName + " to release " + release + " on " + client.getHost());
+            client.exec("sudo systemctl try-restart " + packageName, true);
+        });
+        return this;
+    }
+
     public static void discover(Logger log) {
+        discover(log, DISCOVERY_TIMEOUT);
+    }
+
+    /**
+     * Looks for devices through mDNS, and logs each one as soon as it's found,
+     * with the time it took to find it.
+     *
+     * @param timeout
+     *            the maximum time to look for devices, in milliseconds
+     * @param devicenames
+     *            the devices to look for, in which case this returns as soon as
+     *            all of them have been found, or none to look for all devices
+     *            until the time is up
+     * @return the addresses of the devices found, by name
+     */
+    public static Map<String, List<InetAddress>> discover(Logger log, long timeout, String... devicenames) {
+        final BonjourProbe probe = new BonjourProbe(log, true);
         try {
-            final BonjourProbe probe = new BonjourProbe(log, true);
-            Thread.sleep(3000);
-            probe.close();
+            return probe.resolve(new HashSet<String>(Arrays.asList(devicenames)), timeout).get();
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             log.error(e.getMessage());
-        } catch (IOException e) {
-            log.error(e.getMessage());
+        } catch (ExecutionException e) {
+            log.error(e.getCause().getMessage());
+        } finally {
+            try {
+                probe.close();
+            } catch (IOException e) {
+                log.error(e.getMessage());
+            }
         }
+        return Collections.emptyMap();
     }
 
+    /**
+     * Restarts the service and follows its log, on one host after the other,
+     * since the console is needed to stop following it.
+     */
     public RiotCtlTool run() {
         for (SSHClient client : clients) {
             try {
@@ -249,56 +751,37 @@ public class RiotCtlTool {
     }
 
     public RiotCtlTool start() {
-        for (SSHClient client : clients) {
-            try {
-                log.info("Starting " + packageName + " on " + client.getHost());
-                client.exec("sudo systemctl restart " + packageName, true);
-            } catch (IOException e) {
-                e.printStackTrace();
-                log.error(e.getMessage());
-            }
-        }
+        onAllClients("start", client -> {
+            log.info("Starting " + packageName + " on " + client.getHost());
+            client.exec("sudo systemctl restart " + packageName, true);
+        });
         return this;
     }
 
     public RiotCtlTool stop() {
-        for (SSHClient client : clients) {
-            try {
-                client.exec("sudo systemctl stop " + packageName, true);
-                log.info("Stopped " + packageName + " on " + client.getHost());
-            } catch (IOException e) {
-                e.printStackTrace();
-                log.error(e.getMessage());
-            }
-        }
+        onAllClients("stop", client -> {
+            client.exec("sudo systemctl stop " + packageName, true);
+            log.info("Stopped " + packageName + " on " + client.getHost());
+        });
         return this;
     }
 
     public RiotCtlTool install() {
-        for (SSHClient client : clients) {
-            try {
-                client.exec("sudo systemctl enable " + packageName, true);
-                client.exec("sudo systemctl restart " + packageName, true);
-                log.info("Enabled service " + packageName + ", service will now start automatically.");
-            } catch (IOException e) {
-                e.printStackTrace();
-                log.error(e.getMessage());
-            }
-        }
+        onAllClients("install", client -> {
+            client.exec("sudo systemctl enable " + packageName, true);
+            client.exec("sudo systemctl restart " + packageName, true);
+            log.info("Enabled service " + packageName + " on " + client.getHost()
+                    + ", service will now start automatically.");
+        });
         return this;
     }
 
     public RiotCtlTool uninstall() {
-        for (SSHClient client : clients) {
-            try {
-                client.exec("sudo systemctl disable " + packageName, true);
-                client.exec("sudo systemctl stop " + packageName, true);
-                log.info("Disabled service " + packageName);
-            } catch (IOException e) {
-                e.printStackTrace();
-                log.error(e.getMessage());
-            }
-        }
+        onAllClients("uninstall", client -> {
+            client.exec("sudo systemctl disable " + packageName, true);
+            client.exec("sudo systemctl stop " + packageName, true);
+            log.info("Disabled service " + packageName + " on " + client.getHost());
+        });
         return this;
     }
 
@@ -307,6 +790,7 @@ public class RiotCtlTool {
             log.info("Closing session to " + client.getHost());
             client.close();
         }
+        scheduler.close();
         return this;
     }
 
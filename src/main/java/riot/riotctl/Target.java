@@ -6,16 +6,46 @@ public class Target {
         HOST, MDNS, HOST_THEN_MDNS
     }
 
+    /**
+     * How files are copied to the device: one SCP transfer per file, the whole
+     * directory as a single (optionally gzip-compressed) tar stream, through a
+     * single SFTP channel into a staging directory, from which files are moved
+     * into place at the end, or file by file into partial files, so that an
+     * interrupted deployment continues where it left off.
+     */
+    public enum TransferMethod {
+        SCP, TAR, TAR_GZIP, SFTP, RESUMABLE
+    }
+
     private final DiscoveryMethod method;
     private final String devicename;
     private final String username;
     private final String password;
+    private final TransferMethod transferMethod;
+    private final long rateLimit;
 
     public Target(final DiscoveryMethod method, final String devicename, final String username, final String password) {
+        this(method, devicename, username, password, TransferMethod.SCP);
+    }
+
+    public Target(final DiscoveryMethod method, final String devicename, final String username, final String password,
+            final TransferMethod transferMethod) {
+        this(method, devicename, username, password, transferMethod, 0);
+    }
+
+    /**
+     * @param rateLimit
+     *            the maximum rate at which files are uploaded to the device, in
+     *            bytes per second, or 0 for no limit
+     */
+    public Target(final DiscoveryMethod method, final String devicename, final String username, final String password,
+            final TransferMethod transferMethod, final long rateLimit) {
         this.method = method;
         this.devicename = devicename;
         this.username = username;
         this.password = password;
+        this.transferMethod = transferMethod;
+        this.rateLimit = rateLimit;
     }
 
     public String getDevicename() {
@@ -34,4 +64,12 @@ public class Target {
         return method;
     }
 
+    public TransferMethod getTransferMethod() {
+        return transferMethod;
+    }
+
+    public long getRateLimit() {
+        return rateLimit;
+    }
+
 }
@@ -8,11 +8,23 @@ import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import javax.jmdns.JmDNS;
 import javax.jmdns.ServiceEvent;
@@ -25,10 +37,40 @@ import riot.riotctl.logger.StdOutLogger;
 public class BonjourProbe implements ServiceListener, Closeable {
 
     private static final String SERVICE = "_sftp-ssh._tcp.local.";
+    private static final ScheduledExecutorService DEADLINES = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "riotctl-mdns-deadline");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * A call to {@link BonjourProbe#resolve(Set, long)} which is still waiting
+     */
+    private class Request {
+        final Set<String> names;
+        final CompletableFuture<Map<String, List<InetAddress>>> future = new CompletableFuture<>();
+
+        Request(Set<String> names) {
+            this.names = names;
+        }
+
+        boolean isSatisfied() {
+            return !names.isEmpty() && devices.keySet().containsAll(names);
+        }
+    }
+
     private final Logger log;
-    private final Target target;
+    /** The targets to look for, by device name */
+    private final Map<String, Target> targets = new LinkedHashMap<String, Target>();
+    private final MdnsQuerier querier;
+    private final List<MdnsQuerier.Listener> listeners = new CopyOnWriteArrayList<MdnsQuerier.Listener>();
     private final List<JmDNS> mdnsInstances = Collections.synchronizedList(new ArrayList<JmDNS>());
-    private final List<HostInfo> results = new ArrayList<HostInfo>();
+    /** The addresses of every device found so far, by name, guarded by this */
+    private final Map<String, List<InetAddress>> devices = new LinkedHashMap<String, List<InetAddress>>();
+    /** How long it took to find each device in milliseconds, guarded by this */
+    private final Map<String, Long> latencies = new HashMap<String, Long>();
+    private final List<Request> pending = new ArrayList<Request>();
+    private final long started = System.nanoTime();
 
     public BonjourProbe(Logger log, Target target) {
         this(log, target, findAdapters(log));
@@ -42,7 +84,7 @@ public class BonjourProbe implements ServiceListener, Closeable {
      *                    192.168.*, or 10.*
      */
     public BonjourProbe(Logger log, boolean allAdapters) {
-        this(log, null, allAdapters ? findAdapters(log) : findMostLikelyAdapters(log));
+        this(log, Collections.<Target>emptyList(), allAdapters ? findAdapters(log) : findMostLikelyAdapters(log));
     }
 
     public BonjourProbe(Logger log, Target target, boolean allAdapters) {
@@ -50,10 +92,33 @@ public class BonjourProbe implements ServiceListener, Closeable {
     }
 
     public BonjourProbe(Logger log, Target target, Set<InetAddress> networkAdapters) {
+        this(log, target == null ? Collections.<Target>emptyList() : Collections.singletonList(target),
+                networkAdapters);
+    }
+
+    /**
+     * Set up a single mDNS probe that looks for several devices at once
+     *
+     * @param log         the RIoT logger object
+     * @param targets     the devices to look for
+     * @param allAdapters whether to query all network adapters, or only the most likely ones
+     */
+    public BonjourProbe(Logger log, Collection<Target> targets, boolean allAdapters) {
+        this(log, targets, allAdapters ? findAdapters(log) : findMostLikelyAdapters(log));
+    }
+
+    public BonjourProbe(Logger log, Collection<Target> targets, Set<InetAddress> networkAdapters) {
         super();
         this.log = log;
-        this.target = target;
-        log.info("Probing " + networkAdapters.size() + " interfaces for service " + SERVICE);
+        for (Target target : targets) {
+            this.targets.putIfAbsent(target.getDevicename(), target);
+        }
+        this.querier = startQuerier(networkAdapters);
+        if (querier != null) {
+            log.info("Probing " + querier.getInterfaceCount() + " interfaces for service " + SERVICE);
+            return;
+        }
+        log.info("Probing " + networkAdapters.size() + " interfaces for service " + SERVICE + " through JmDNS");
 
         Collections.unmodifiableSet(networkAdapters).stream().parallel().forEach(networkAdapter -> {
             try {
@@ -67,6 +132,29 @@ public class BonjourProbe implements ServiceListener, Closeable {
         });
     }
 
+    /**
+     * @return the querier which looks for devices, or null if JmDNS has to be used instead
+     */
+    private MdnsQuerier startQuerier(Set<InetAddress> networkAdapters) {
+        try {
+            return new MdnsQuerier(log, SERVICE, networkAdapters, new MdnsQuerier.Listener() {
+                @Override
+                public void resolved(String name, List<InetAddress> addresses) {
+                    BonjourProbe.this.resolved(name, addresses, true);
+                }
+
+                @Override
+                public void removed(String name) {
+                    log.debug("Service " + SERVICE + " on " + name + " has stopped.");
+                    BonjourProbe.this.removed(name);
+                }
+            });
+        } catch (IOException e) {
+            log.warn("Can't query mDNS directly, falling back to JmDNS: " + e.getMessage());
+            return null;
+        }
+    }
+
     private static Set<InetAddress> findMostLikelyAdapters(Logger log) {
         Set<InetAddress> results = new HashSet<InetAddress>();
 
@@ -119,15 +207,103 @@ public class BonjourProbe implements ServiceListener, Closeable {
         }
     }
 
-    public List<HostInfo> getResults() {
-        if (results.size() == 0) {
+    /**
+     * @return the hosts found so far for the probe's targets, without waiting for any
+     */
+    public synchronized List<HostInfo> getResults() {
+        List<HostInfo> found = new ArrayList<HostInfo>();
+        for (Target target : targets.values()) {
+            List<InetAddress> addrs = devices.get(target.getDevicename());
+            if (addrs != null) {
+                for (InetAddress addr : addrs) {
+                    found.add(new HostInfo(addr, target, latencies.get(target.getDevicename())));
+                }
+            }
+        }
+        if (found.size() == 0) {
             log.warn("No matching hosts found via mDNS.");
         }
-        return results;
+        return found;
+    }
+
+    /**
+     * Looks for devices until all of them have been found, or the deadline has passed. Devices found before the
+     * call count as well.
+     *
+     * @param names   the names of the devices to look for, or an empty set to collect every device found until the
+     *                deadline
+     * @param timeout the time until the deadline in milliseconds
+     * @return a future which completes as soon as all devices have been found, or with those found so far at the
+     *         deadline, or when the probe is closed; it has no entry for devices which weren't found
+     */
+    public CompletableFuture<Map<String, List<InetAddress>>> resolve(Set<String> names, long timeout) {
+        final Request request = new Request(new HashSet<String>(names));
+        synchronized (this) {
+            if (request.isSatisfied()) {
+                request.future.complete(collect(request.names));
+                return request.future;
+            }
+            pending.add(request);
+        }
+        final ScheduledFuture<?> deadline = DEADLINES.schedule(() -> expire(request), timeout, TimeUnit.MILLISECONDS);
+        request.future.whenComplete((found, e) -> deadline.cancel(false));
+        return request.future;
+    }
+
+    /**
+     * @return how long it took to find a device since the probe started in milliseconds, or -1 if it hasn't been
+     *         found
+     */
+    public synchronized long getLatency(String name) {
+        Long latency = latencies.get(name);
+        return latency == null ? -1 : latency;
+    }
+
+    /**
+     * Completes a request with what has been found so far
+     */
+    private void expire(Request request) {
+        final Map<String, List<InetAddress>> found;
+        synchronized (this) {
+            if (!pending.remove(request)) {
+                return;
+            }
+            found = collect(request.names);
+        }
+        if (found.size() < request.names.size()) {
+            Set<String> missing = new TreeSet<String>(request.names);
+            missing.removeAll(found.keySet());
+            log.warn("Not found via mDNS after " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started)
+                    + " ms: " + String.join(", ", missing));
+        }
+        request.future.complete(found);
+    }
+
+    /**
+     * @return the addresses of the given devices which have been found, or of all devices if none are given
+     */
+    private Map<String, List<InetAddress>> collect(Set<String> names) {
+        Map<String, List<InetAddress>> found = new LinkedHashMap<String, List<InetAddress>>();
+        for (Map.Entry<String, List<InetAddress>> device : devices.entrySet()) {
+            if (names.isEmpty() || names.contains(device.getKey())) {
+                found.put(device.getKey(), new ArrayList<InetAddress>(device.getValue()));
+            }
+        }
+        return found;
     }
 
     @Override
     public void close() throws IOException {
+        final List<Request> waiting;
+        synchronized (this) {
+            waiting = new ArrayList<Request>(pending);
+        }
+        for (Request request : waiting) {
+            expire(request);
+        }
+        if (querier != null) {
+            querier.close();
+        }
         Collections.unmodifiableList(mdnsInstances).stream().parallel().forEach(jmDNS -> {
             try {
                 jmDNS.close();
@@ -146,36 +322,109 @@ public class BonjourProbe implements ServiceListener, Closeable {
     @Override
     public void serviceRemoved(ServiceEvent evt) {
         log.debug("Service " + evt.getType() + " on " + evt.getName() + " has stopped.");
+        removed(evt.getName());
     }
 
     @Override
     public void serviceResolved(ServiceEvent evt) {
         log.debug("Service Resolved: " + evt);
-        if (target == null) {
-            for (InetAddress addr : evt.getInfo().getInetAddresses()) {
-                StringBuilder sb = new StringBuilder("Device '").append(evt.getName());
+        resolved(evt.getName(), Arrays.asList(evt.getInfo().getInetAddresses()), false);
+    }
+
+    /**
+     * @param complete
+     *            whether the addresses are all of the device's, and replace
+     *            those found before, rather than those it answered with on one
+     *            of the adapters
+     */
+    private void resolved(String name, List<InetAddress> addresses, boolean complete) {
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        final List<InetAddress> added = new ArrayList<InetAddress>();
+        final List<Request> satisfied = new ArrayList<Request>();
+        final List<Map<String, List<InetAddress>>> results = new ArrayList<Map<String, List<InetAddress>>>();
+        final List<InetAddress> current;
+        synchronized (this) {
+            List<InetAddress> addrs = devices.computeIfAbsent(name, k -> new ArrayList<InetAddress>());
+            if (complete) {
+                addrs.retainAll(addresses);
+            }
+            for (InetAddress addr : addresses) {
+                // The same device may answer on several adapters
+                if (!addrs.contains(addr)) {
+                    addrs.add(addr);
+                    added.add(addr);
+                }
+            }
+            if (addrs.isEmpty()) {
+                devices.remove(name);
+                return;
+            }
+            current = new ArrayList<InetAddress>(addrs);
+            latencies.putIfAbsent(name, elapsed);
+            for (Request request : pending) {
+                if (request.isSatisfied()) {
+                    satisfied.add(request);
+                    results.add(collect(request.names));
+                }
+            }
+            pending.removeAll(satisfied);
+        }
+
+        if (targets.isEmpty() || targets.containsKey(name)) {
+            for (InetAddress addr : added) {
+                StringBuilder sb = new StringBuilder("Device '").append(name);
                 final String hostname = addr.getHostName();
                 sb.append("' is at ").append(hostname);
                 final String hostaddr = addr.getHostAddress();
                 if (!hostaddr.equals(hostname)) {
                     sb.append(" (").append(hostaddr).append(")");
                 }
-                log.info(sb.toString());
+                log.info(sb.append(", found after ").append(elapsed).append(" ms").toString());
             }
         }
-        if (evt.getName().equals(target.getDevicename())) {
-            for (InetAddress addr : evt.getInfo().getInetAddresses()) {
-                log.info("Found device through mDNS: " + addr);
-                results.add(new HostInfo(addr, target.getUsername(), target.getPassword()));
-            }
-            this.notifyAll();
+        // Outside the lock, since whatever waits on them runs now
+        for (int i = 0; i < satisfied.size(); i++) {
+            satisfied.get(i).future.complete(results.get(i));
+        }
+        for (MdnsQuerier.Listener listener : listeners) {
+            listener.resolved(name, current);
+        }
+    }
+
+    private void removed(String name) {
+        synchronized (this) {
+            devices.remove(name);
+        }
+        for (MdnsQuerier.Listener listener : listeners) {
+            listener.removed(name);
+        }
+    }
+
+    /**
+     * Tells a listener about every device found, confirmed again or gone, on the probe's thread
+     */
+    void addListener(MdnsQuerier.Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Makes the probe confirm devices at least this often, if it queries mDNS directly
+     *
+     * @return false if JmDNS is used instead, which confirms devices only when their records expire
+     */
+    boolean setRefreshInterval(long refreshInterval) {
+        if (querier == null) {
+            return false;
         }
+        querier.setRefreshInterval(refreshInterval);
+        return true;
     }
 
     public static void main(String[] args) throws IOException {
         StdOutLogger log = new StdOutLogger();
         Target target = new Target(null, args[0], "raspberry", "pi");
         BonjourProbe probe = new BonjourProbe(log, target, true);
+        probe.resolve(Collections.singleton(target.getDevicename()), 5000).join();
 
         log.info("Found: ");
         for (HostInfo addr : probe.getResults()) {
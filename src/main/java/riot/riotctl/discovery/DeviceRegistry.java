@@ -0,0 +1,256 @@
+package riot.riotctl.discovery;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import riot.riotctl.Logger;
+import riot.riotctl.Target;
+import riot.riotctl.Target.DiscoveryMethod;
+
+/**
+ * Keeps track of the devices which are online, for as long as it is open,
+ * rather than looking for them once. Devices are added when an mDNS probe finds
+ * them, and removed when they say goodbye, or when they haven't been confirmed
+ * for a while. Subscribers are told about every change, on a thread of the
+ * registry's own, in the order in which they happened.
+ */
+public class DeviceRegistry implements Closeable {
+    /** How long a device stays registered without being confirmed, by default */
+    public static final long DEFAULT_EXPIRY = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * A device which is online, as last seen
+     */
+    public static final class Device {
+        private final String name;
+        private final List<InetAddress> addresses;
+        private final long lastSeen;
+
+        Device(String name, List<InetAddress> addresses, long lastSeen) {
+            this.name = name;
+            this.addresses = Collections.unmodifiableList(new ArrayList<InetAddress>(addresses));
+            this.lastSeen = lastSeen;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public List<InetAddress> getAddresses() {
+            return addresses;
+        }
+
+        /**
+         * @return when the device was last found or confirmed, in milliseconds
+         *         since the epoch
+         */
+        public long getLastSeen() {
+            return lastSeen;
+        }
+    }
+
+    /**
+     * Is told about changes to the registered devices
+     */
+    public interface Subscriber {
+        default void deviceAdded(Device device) {
+        }
+
+        /**
+         * @param device
+         *            the device as last seen
+         */
+        default void deviceRemoved(Device device) {
+        }
+
+        /**
+         * @param device
+         *            the device, with the addresses which replace the previous
+         *            ones
+         * @param previous
+         *            the addresses at which it was before
+         */
+        default void addressesChanged(Device device, List<InetAddress> previous) {
+        }
+    }
+
+    private final Logger log;
+    private final long expiry;
+    private final BonjourProbe probe;
+    private final Map<String, Device> devices = new ConcurrentHashMap<String, Device>();
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+    /** Delivers events and expires devices, one at a time */
+    private final ScheduledExecutorService events;
+
+    public DeviceRegistry(Logger log) {
+        this(log, DEFAULT_EXPIRY);
+    }
+
+    /**
+     * Starts looking for devices on all network adapters.
+     *
+     * @param expiry
+     *            how long a device stays registered without being confirmed, in
+     *            milliseconds
+     */
+    public DeviceRegistry(Logger log, long expiry) {
+        this.log = log;
+        this.expiry = expiry;
+        this.events = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "riotctl-registry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.probe = new BonjourProbe(log, true);
+        probe.addListener(new MdnsQuerier.Listener() {
+            @Override
+            public void resolved(String name, List<InetAddress> addresses) {
+                events.execute(() -> update(name, addresses));
+            }
+
+            @Override
+            public void removed(String name) {
+                events.execute(() -> remove(name, "said goodbye or its records expired"));
+            }
+        });
+        // Those found before listening
+        probe.resolve(Collections.<String>emptySet(), 0)
+                .thenAccept(found -> events.execute(() -> found.forEach(this::update)));
+        // Confirm devices a few times within the expiry, so that one lost response doesn't remove them
+        if (probe.setRefreshInterval(expiry / 3)) {
+            final long period = Math.max(expiry / 4, 1);
+            events.scheduleWithFixedDelay(this::expire, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            log.warn("Devices are only removed from the registry when they say goodbye");
+        }
+    }
+
+    /**
+     * Subscribes to changes. The subscriber isn't told about the devices which
+     * are already registered.
+     */
+    public void subscribe(Subscriber subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    public void unsubscribe(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    /**
+     * @return the device of that name, or null if it isn't online
+     */
+    public Device get(String name) {
+        return devices.get(name);
+    }
+
+    /**
+     * @return the devices which are online
+     */
+    public Collection<Device> getDevices() {
+        return Collections.unmodifiableCollection(devices.values());
+    }
+
+    /**
+     * Makes targets of all devices which are online, for deploying to all of
+     * them
+     */
+    public List<Target> getTargets(String username, String password) {
+        final List<Target> targets = new ArrayList<Target>();
+        for (Device device : devices.values()) {
+            targets.add(new Target(DiscoveryMethod.MDNS, device.getName(), username, password));
+        }
+        return targets;
+    }
+
+    /**
+     * Looks the targets up in the registry
+     *
+     * @param missing
+     *            where to add the targets which aren't online
+     * @return the hosts of the targets which are online
+     */
+    public List<HostInfo> lookup(List<Target> targets, List<Target> missing) {
+        final List<HostInfo> hosts = new ArrayList<HostInfo>();
+        for (Target target : targets) {
+            final Device device = devices.get(target.getDevicename());
+            if (device == null) {
+                missing.add(target);
+                continue;
+            }
+            for (InetAddress addr : device.getAddresses()) {
+                hosts.add(new HostInfo(addr, target));
+            }
+        }
+        return hosts;
+    }
+
+    private void update(String name, List<InetAddress> addresses) {
+        final Device previous = devices.get(name);
+        final Device device = new Device(name, addresses, System.currentTimeMillis());
+        devices.put(name, device);
+        if (previous == null) {
+            log.debug("Device " + name + " is online at " + device.getAddresses());
+            for (Subscriber subscriber : subscribers) {
+                notify(() -> subscriber.deviceAdded(device));
+            }
+        } else if (!new HashSet<InetAddress>(previous.getAddresses())
+                .equals(new HashSet<InetAddress>(device.getAddresses()))) {
+            // Not just answered in another order
+            log.info("Device " + name + " moved from " + previous.getAddresses() + " to " + device.getAddresses());
+            for (Subscriber subscriber : subscribers) {
+                notify(() -> subscriber.addressesChanged(device, previous.getAddresses()));
+            }
+        }
+    }
+
+    private void remove(String name, String reason) {
+        final Device device = devices.remove(name);
+        if (device == null) {
+            return;
+        }
+        log.info("Device " + name + " is offline, it " + reason);
+        for (Subscriber subscriber : subscribers) {
+            notify(() -> subscriber.deviceRemoved(device));
+        }
+    }
+
+    private void expire() {
+        final long expired = System.currentTimeMillis() - expiry;
+        for (Device device : devices.values()) {
+            if (device.getLastSeen() < expired) {
+                remove(device.getName(), "wasn't seen for "
+                        + TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - device.getLastSeen()) + " s");
+            }
+        }
+    }
+
+    /**
+     * Runs a subscriber, which mustn't stop the others from being told
+     */
+    private void notify(Runnable event) {
+        try {
+            event.run();
+        } catch (RuntimeException e) {
+            log.error("Device registry subscriber failed: " + e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        probe.close();
+        events.shutdownNow();
+    }
+}
@@ -0,0 +1,202 @@
+package riot.riotctl.discovery;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers where devices were found, so that they don't have to be looked up
+ * through DNS or mDNS again on every run. For each device name, the cache keeps
+ * its addresses, when they were last confirmed, and whether an SSH session to
+ * it could be opened the last time.
+ * <p>
+ * Entries which were confirmed within the time to live are fresh. Older ones
+ * are stale, but still used while they are being confirmed again, and dropped
+ * once they haven't been seen for a month.
+ */
+public class DiscoveryCache {
+    /** How long entries are used without being confirmed again, by default */
+    public static final long DEFAULT_TTL = TimeUnit.HOURS.toMillis(1);
+    /** The resolve time of hosts whose addresses come from the cache */
+    public static final long CACHED = -2;
+    /** How long entries are kept without being seen */
+    private static final long MAX_AGE = TimeUnit.DAYS.toMillis(30);
+
+    /**
+     * Where and when a device was last found
+     */
+    public static class Entry {
+        private final String devicename;
+        private final List<InetAddress> addresses;
+        private final long lastSeen;
+        private final Boolean reachable;
+
+        Entry(String devicename, List<InetAddress> addresses, long lastSeen, Boolean reachable) {
+            this.devicename = devicename;
+            this.addresses = Collections.unmodifiableList(addresses);
+            this.lastSeen = lastSeen;
+            this.reachable = reachable;
+        }
+
+        public String getDevicename() {
+            return devicename;
+        }
+
+        public List<InetAddress> getAddresses() {
+            return addresses;
+        }
+
+        /**
+         * @return when the device was last found at these addresses, in
+         *         milliseconds since the epoch
+         */
+        public long getLastSeen() {
+            return lastSeen;
+        }
+
+        /**
+         * @return whether an SSH session to the device could be opened the last
+         *         time, or null if it wasn't tried since it was found
+         */
+        public Boolean isReachable() {
+            return reachable;
+        }
+    }
+
+    private final File file;
+    private final long ttl;
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    /**
+     * Opens the cache in the user's home directory, with the default time to
+     * live
+     */
+    public DiscoveryCache() {
+        this(new File(System.getProperty("user.home"), ".riotctl/discovery.cache"), DEFAULT_TTL);
+    }
+
+    /**
+     * @param file
+     *            the file in which the cache is kept, which needn't exist yet
+     * @param ttl
+     *            how long entries are used without being confirmed again, in
+     *            milliseconds
+     */
+    public DiscoveryCache(File file, long ttl) {
+        this.file = file;
+        this.ttl = ttl;
+        load();
+    }
+
+    /**
+     * @return the entry of a device, or null if it isn't known
+     */
+    public synchronized Entry get(String devicename) {
+        return entries.get(devicename);
+    }
+
+    /**
+     * @return whether the entry was confirmed within the time to live
+     */
+    public boolean isFresh(Entry entry) {
+        return System.currentTimeMillis() - entry.lastSeen < ttl;
+    }
+
+    /**
+     * Records that a device was just found at the given addresses. Whether it
+     * is reachable is kept if its addresses haven't changed.
+     */
+    public synchronized void put(String devicename, List<InetAddress> addresses) {
+        final Entry previous = entries.get(devicename);
+        final Boolean reachable = previous != null && previous.addresses.equals(addresses) ? previous.reachable
+                : null;
+        entries.put(devicename,
+                new Entry(devicename, new ArrayList<InetAddress>(addresses), System.currentTimeMillis(), reachable));
+    }
+
+    /**
+     * Records whether an SSH session to a device could be opened
+     */
+    public synchronized void setReachable(String devicename, boolean reachable) {
+        final Entry entry = entries.get(devicename);
+        if (entry != null) {
+            entries.put(devicename, new Entry(devicename, entry.addresses, entry.lastSeen, reachable));
+        }
+    }
+
+    /**
+     * Writes the cache to its file
+     *
+     * @throws IOException
+     *             if the file can't be written
+     */
+    public synchronized void save() throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        for (Entry entry : entries.values()) {
+            sb.append(entry.devicename).append(' ').append(entry.lastSeen).append(' ')
+                    .append(entry.reachable == null ? "-" : entry.reachable ? "yes" : "no");
+            for (InetAddress addr : entry.addresses) {
+                // Keeps the host name if known, without looking it up
+                sb.append(' ').append(addr);
+            }
+            sb.append('\n');
+        }
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        Files.write(tmpFile.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void load() {
+        if (!file.isFile()) {
+            return;
+        }
+        final long expired = System.currentTimeMillis() - MAX_AGE;
+        try {
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                final String[] fields = line.split(" ");
+                if (fields.length < 4) {
+                    continue;
+                }
+                final long lastSeen = Long.parseLong(fields[1]);
+                if (lastSeen < expired) {
+                    continue;
+                }
+                final Boolean reachable = "-".equals(fields[2]) ? null : "yes".equals(fields[2]);
+                final List<InetAddress> addresses = new ArrayList<InetAddress>();
+                for (int i = 3; i < fields.length; i++) {
+                    addresses.add(parseAddress(fields[i]));
+                }
+                entries.put(fields[0], new Entry(fields[0], addresses, lastSeen, reachable));
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Just discover everything again
+            entries.clear();
+        }
+    }
+
+    /**
+     * Parses an address in the form of {@link InetAddress#toString()}, without
+     * looking up anything
+     */
+    private static InetAddress parseAddress(String s) throws UnknownHostException {
+        final int slash = s.lastIndexOf('/');
+        final String hostname = s.substring(0, Math.max(slash, 0));
+        final InetAddress addr = InetAddress.getByName(s.substring(slash + 1));
+        if (hostname.isEmpty() || (addr instanceof Inet6Address && ((Inet6Address) addr).getScopeId() != 0)) {
+            return addr;
+        }
+        return InetAddress.getByAddress(hostname, addr.getAddress());
+    }
+}
@@ -4,8 +4,18 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import riot.riotctl.Logger;
 import riot.riotctl.Target;
@@ -13,53 +23,223 @@ import riot.riotctl.Target.DiscoveryMethod;
 import riot.riotctl.logger.StdOutLogger;
 
 public class DiscoveryUtil {
+    /** How long to look for devices through mDNS, in milliseconds */
+    private static final long MDNS_TIMEOUT = 5000;
+    /** The maximum number of DNS lookups running at the same time */
+    private static final int MAX_LOOKUPS = 16;
 
     private DiscoveryUtil() {
         // Not instantiable
     }
 
+    /**
+     * Resolves all targets at once: the DNS lookups run in parallel, and a single
+     * mDNS probe looks for every device which may need it, while they do.
+     *
+     * @return the hosts found, in the order of the targets
+     */
     public static List<HostInfo> discoverHostnames(Logger log, List<Target> targets) {
-        LinkedList<HostInfo> results = new LinkedList<HostInfo>();
-        HostInfo hostinfo;
+        final long start = System.nanoTime();
+        final List<Target> mdnsTargets = new ArrayList<Target>();
         for (Target target : targets) {
-            switch (target.getDiscoveryMethod()) {
-            case HOST:
-                hostinfo = lookup(log, target);
-                if (hostinfo != null) {
-                    results.add(hostinfo);
-                } else {
-                    log.warn("Host not found: " + target.getDevicename());
+            if (target.getDiscoveryMethod() == DiscoveryMethod.MDNS
+                    || target.getDiscoveryMethod() == DiscoveryMethod.HOST_THEN_MDNS) {
+                mdnsTargets.add(target);
+            }
+        }
+        final BonjourProbe probe = mdnsTargets.isEmpty() ? null : new BonjourProbe(log, mdnsTargets, true);
+        try {
+            final Map<Target, HostInfo> found = lookupAll(log, targets, start);
+
+            // Only wait for the devices DNS didn't find
+            final Set<String> wanted = new HashSet<String>();
+            for (Target target : mdnsTargets) {
+                if (!found.containsKey(target)) {
+                    wanted.add(target.getDevicename());
+                }
+            }
+            Map<String, List<InetAddress>> probed = Collections.emptyMap();
+            if (!wanted.isEmpty()) {
+                final long remaining = MDNS_TIMEOUT - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                try {
+                    probed = probe.resolve(wanted, Math.max(remaining, 0)).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    log.warn("Interrupted while looking for devices through mDNS");
+                } catch (ExecutionException e) {
+                    log.error("Looking for devices through mDNS failed: " + e.getCause());
                 }
-                break;
-            case MDNS:
-                results.addAll(new BonjourProbe(log, target, true).getResults());
-                break;
-            case HOST_THEN_MDNS:
-                hostinfo = lookup(log, target);
+            }
+
+            final List<HostInfo> results = new ArrayList<HostInfo>();
+            for (Target target : targets) {
+                final HostInfo hostinfo = found.get(target);
+                final List<InetAddress> addrs = probed.get(target.getDevicename());
                 if (hostinfo != null) {
+                    log.info("Resolved " + target.getDevicename() + " via DNS in " + hostinfo.getResolveTime()
+                            + " ms: " + hostinfo.getHost());
                     results.add(hostinfo);
+                } else if (addrs != null) {
+                    final long latency = probe.getLatency(target.getDevicename());
+                    log.info("Resolved " + target.getDevicename() + " via mDNS in " + latency + " ms: " + addrs);
+                    for (InetAddress addr : addrs) {
+                        results.add(new HostInfo(addr, target, latency));
+                    }
                 } else {
-                    results.addAll(new BonjourProbe(log, target, true).getResults());
+                    log.warn("Host not found: " + target.getDevicename() + " (gave up after "
+                            + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms)");
+                }
+            }
+            return results;
+        } finally {
+            if (probe != null) {
+                try {
+                    probe.close();
+                } catch (IOException e) {
+                    log.error(e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Resolves the targets through a cache. Targets with a fresh entry are
+     * returned right away. Stale entries are used as well, while the targets are
+     * discovered again in the background. Only targets which aren't cached, or
+     * which couldn't be reached at their cached addresses, are discovered before
+     * returning. The cache is updated with what is found.
+     *
+     * @param cache
+     *            the cache, or null to discover all targets
+     * @return the hosts found, in the order of the targets
+     */
+    public static List<HostInfo> discoverHostnames(Logger log, List<Target> targets, DiscoveryCache cache) {
+        if (cache == null) {
+            return discoverHostnames(log, targets);
+        }
+        final Map<Target, List<HostInfo>> cached = new HashMap<Target, List<HostInfo>>();
+        final List<Target> missing = new ArrayList<Target>();
+        final List<Target> stale = new ArrayList<Target>();
+        for (Target target : targets) {
+            final DiscoveryCache.Entry entry = cache.get(target.getDevicename());
+            if (entry == null || Boolean.FALSE.equals(entry.isReachable())) {
+                missing.add(target);
+                continue;
+            }
+            final List<HostInfo> hosts = new ArrayList<HostInfo>();
+            for (InetAddress addr : entry.getAddresses()) {
+                hosts.add(new HostInfo(addr, target, DiscoveryCache.CACHED));
+            }
+            cached.put(target, hosts);
+            final boolean fresh = cache.isFresh(entry);
+            if (!fresh) {
+                stale.add(target);
+            }
+            log.info("Using " + (fresh ? "cached" : "stale") + " addresses of " + target.getDevicename() + ", seen "
+                    + TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis() - entry.getLastSeen())
+                    + " minutes ago: " + entry.getAddresses());
+        }
+
+        if (!stale.isEmpty()) {
+            final Thread revalidation = new Thread(() -> update(log, cache, discoverHostnames(log, stale)),
+                    "riotctl-revalidate");
+            revalidation.setDaemon(true);
+            revalidation.start();
+        }
+
+        final List<HostInfo> found = missing.isEmpty() ? Collections.<HostInfo>emptyList()
+                : discoverHostnames(log, missing);
+        update(log, cache, found);
+
+        final List<HostInfo> results = new ArrayList<HostInfo>();
+        for (Target target : targets) {
+            if (cached.containsKey(target)) {
+                results.addAll(cached.get(target));
+            } else {
+                for (HostInfo hostinfo : found) {
+                    if (hostinfo.getTarget() == target) {
+                        results.add(hostinfo);
+                    }
                 }
-            default:
-                break;
             }
         }
         return results;
     }
 
-    private static final HostInfo lookup(Logger log, Target target) {
-        return lookup(log, target.getDevicename(), target.getUsername(), target.getPassword());
+    /**
+     * Records the addresses at which the targets were found
+     */
+    private static void update(Logger log, DiscoveryCache cache, List<HostInfo> found) {
+        if (found.isEmpty()) {
+            return;
+        }
+        final Map<String, List<InetAddress>> addresses = new LinkedHashMap<String, List<InetAddress>>();
+        for (HostInfo hostinfo : found) {
+            addresses.computeIfAbsent(hostinfo.getTarget().getDevicename(), k -> new ArrayList<InetAddress>())
+                    .add(hostinfo.getHost());
+        }
+        for (Map.Entry<String, List<InetAddress>> device : addresses.entrySet()) {
+            cache.put(device.getKey(), device.getValue());
+        }
+        try {
+            cache.save();
+        } catch (IOException e) {
+            log.warn("Couldn't save the discovery cache: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Looks up the targets which may be found through DNS, in parallel
+     *
+     * @return the hosts found, by target
+     */
+    private static Map<Target, HostInfo> lookupAll(Logger log, List<Target> targets, long start) {
+        final Map<Target, Future<HostInfo>> lookups = new LinkedHashMap<Target, Future<HostInfo>>();
+        final ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(targets.size(), MAX_LOOKUPS)),
+                r -> {
+                    Thread thread = new Thread(r, "riotctl-lookup");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        try {
+            for (Target target : targets) {
+                if (target.getDiscoveryMethod() == DiscoveryMethod.HOST
+                        || target.getDiscoveryMethod() == DiscoveryMethod.HOST_THEN_MDNS) {
+                    lookups.put(target, pool.submit(() -> lookup(log, target, start)));
+                }
+            }
+            final Map<Target, HostInfo> found = new HashMap<Target, HostInfo>();
+            for (Map.Entry<Target, Future<HostInfo>> lookup : lookups.entrySet()) {
+                try {
+                    final HostInfo hostinfo = lookup.getValue().get();
+                    if (hostinfo != null) {
+                        found.put(lookup.getKey(), hostinfo);
+                    }
+                } catch (ExecutionException e) {
+                    log.error("Looking up " + lookup.getKey().getDevicename() + " failed: " + e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            return found;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static final HostInfo lookup(Logger log, Target target, long start) {
+        return lookup(log, target.getDevicename(), target, start);
     }
 
-    private static final HostInfo lookup(Logger log, String devicename, String username, String password) {
+    private static final HostInfo lookup(Logger log, String devicename, Target target, long start) {
         InetAddress addr;
         try {
             addr = InetAddress.getByName(devicename);
-            return new HostInfo(addr, username, password);
+            return new HostInfo(addr, target, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
         } catch (UnknownHostException e) {
             if (!devicename.endsWith(".local")) {
-                return lookup(log, devicename + ".local", username, password);
+                return lookup(log, devicename + ".local", target, start);
             }
             return null;
         }
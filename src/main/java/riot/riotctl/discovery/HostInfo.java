@@ -2,15 +2,36 @@ package riot.riotctl.discovery;
 
 import java.net.InetAddress;
 
+import riot.riotctl.Target;
+
 public class HostInfo {
     private final InetAddress host;
     private final String username;
     private final String password;
+    private final Target target;
+    private final long resolveTime;
 
     public HostInfo(final InetAddress host, final String username, final String password) {
         this.host = host;
         this.username = username;
         this.password = password;
+        this.target = null;
+        this.resolveTime = -1;
+    }
+
+    public HostInfo(final InetAddress host, final Target target) {
+        this(host, target, -1);
+    }
+
+    /**
+     * @param resolveTime how long it took to find the host, in milliseconds
+     */
+    public HostInfo(final InetAddress host, final Target target, final long resolveTime) {
+        this.host = host;
+        this.username = target.getUsername();
+        this.password = target.getPassword();
+        this.target = target;
+        this.resolveTime = resolveTime;
     }
 
     public InetAddress getHost() {
@@ -25,4 +46,19 @@ public class HostInfo {
         return password;
     }
 
+    /**
+     * @return the target through which this host was found, or null if unknown
+     */
+    public Target getTarget() {
+        return target;
+    }
+
+    /**
+     * @return how long it took to find the host in milliseconds, -1 if unknown, or {@link DiscoveryCache#CACHED}
+     *         if its address was taken from a cache
+     */
+    public long getResolveTime() {
+        return resolveTime;
+    }
+
 }
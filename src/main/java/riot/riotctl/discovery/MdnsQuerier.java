@@ -0,0 +1,674 @@
+package riot.riotctl.discovery;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import riot.riotctl.Logger;
+
+/**
+ * Browses a single mDNS service type, from a single thread and socket which
+ * are shared by all network interfaces. PTR queries for the service are sent
+ * with the instances already known as answers, so that responders don't repeat
+ * them, and are followed by SRV and A queries for instances whose host or
+ * address is still missing. Responses are parsed in place, in a buffer which
+ * is reused, and only instances which are new or have changed cause objects to
+ * be created. Addresses are replaced when a response flushes the host's
+ * earlier ones, and dropped when they say goodbye or their TTL runs out, and
+ * so are instances. Instances which can't be resolved are asked for less and
+ * less often, like the service itself.
+ * <p>
+ * Only IPv4 is used, which is what the devices answer on.
+ */
+class MdnsQuerier implements Closeable {
+    private static final InetSocketAddress GROUP = new InetSocketAddress("224.0.0.251", 5353);
+    private static final int TYPE_A = 1, TYPE_PTR = 12, TYPE_AAAA = 28, TYPE_SRV = 33, CLASS_IN = 1;
+    private static final int CACHE_FLUSH = 0x8000, TRUNCATED = 0x0200;
+    private static final int MAX_PACKET = 9000;
+    /** The largest query sent, so that it isn't fragmented */
+    private static final int MAX_QUERY = 1460;
+    private static final int MAX_POINTERS = 32;
+    private static final long FIRST_INTERVAL = 1000, MAX_INTERVAL = 60000;
+    /**
+     * How long to wait for more responses before asking for missing records.
+     * Further queries for them follow after {@link #FIRST_INTERVAL}, and twice
+     * as long each time.
+     */
+    private static final long FOLLOW_UP_DELAY = 100;
+    /** How old records must be to be flushed, so that a response split into several packets keeps them all */
+    private static final long FLUSH_DELAY = 1000;
+
+    /**
+     * Is told about the service's instances, on the querier's thread
+     */
+    interface Listener {
+        /**
+         * An instance was found, confirmed again, or its addresses changed
+         */
+        void resolved(String name, List<InetAddress> addresses);
+
+        /**
+         * An instance announced that it is going away, or its records expired
+         */
+        void removed(String name);
+    }
+
+    /** A domain name read from a packet, in dotted form */
+    private static final class Name {
+        final byte[] bytes = new byte[256];
+        int length, firstLabel;
+
+        boolean is(byte[] other) {
+            return length == other.length && regionMatches(0, other, 0, length);
+        }
+
+        boolean isInstanceOf(byte[] label, byte[] service) {
+            return firstLabel == label.length && regionMatches(0, label, 0, label.length)
+                    && length == label.length + 1 + service.length
+                    && regionMatches(label.length + 1, service, 0, service.length);
+        }
+
+        boolean endsWith(byte[] suffix) {
+            return length > suffix.length && bytes[length - suffix.length - 1] == '.'
+                    && regionMatches(length - suffix.length, suffix, 0, suffix.length);
+        }
+
+        private boolean regionMatches(int offset, byte[] other, int otherOffset, int len) {
+            for (int i = 0; i < len; i++) {
+                if (lowerCase(bytes[offset + i]) != lowerCase(other[otherOffset + i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        byte[] copy(int from, int to) {
+            final byte[] copy = new byte[to - from];
+            System.arraycopy(bytes, from, copy, 0, copy.length);
+            return copy;
+        }
+    }
+
+    private static final class Address {
+        final byte[] raw;
+        final InetAddress addr;
+        long received, ttl;
+
+        Address(byte[] raw, InetAddress addr) {
+            this.raw = raw;
+            this.addr = addr;
+        }
+
+        boolean isExpired(long now) {
+            return now - received >= TimeUnit.SECONDS.toMillis(ttl);
+        }
+    }
+
+    private static final class Instance {
+        final byte[] label;
+        final String name;
+        byte[] host;
+        final List<Address> addresses = new ArrayList<Address>();
+        long ptrReceived, ptrTtl;
+        /** Whether the instance was found, confirmed or changed since it was last reported */
+        boolean unreported;
+        /** Whether the instance was ever reported as resolved */
+        boolean reported;
+
+        Instance(byte[] label) {
+            this.label = label;
+            this.name = new String(label, StandardCharsets.UTF_8);
+        }
+
+        boolean isResolved() {
+            return host != null && !addresses.isEmpty();
+        }
+
+        long getExpiry() {
+            return ptrReceived + TimeUnit.SECONDS.toMillis(ptrTtl);
+        }
+    }
+
+    private final Logger log;
+    private final Listener listener;
+    private final byte[] service;
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final List<NetworkInterface> interfaces = new ArrayList<NetworkInterface>();
+    private final Thread thread;
+    private final ByteBuffer in = ByteBuffer.allocate(MAX_PACKET);
+    private final ByteBuffer out = ByteBuffer.allocate(MAX_QUERY);
+    private final Name owner = new Name(), target = new Name();
+    private final List<Instance> instances = new ArrayList<Instance>();
+    private volatile boolean closed = false;
+    private volatile long refreshInterval = Long.MAX_VALUE;
+    private long interval = FIRST_INTERVAL;
+    private long nextQuery = 0, lastQuery = 0;
+    private long followUpDelay = FOLLOW_UP_DELAY;
+
+    /**
+     * Joins the mDNS group on the interfaces of the given addresses, and starts
+     * querying.
+     *
+     * @param service
+     *            the service type, such as <code>_sftp-ssh._tcp.local.</code>
+     * @throws IOException
+     *             if the socket can't be set up, or none of the interfaces can
+     *             be used for multicast
+     */
+    MdnsQuerier(Logger log, String service, Set<InetAddress> adapters, Listener listener) throws IOException {
+        this.log = log;
+        this.listener = listener;
+        this.service = (service.endsWith(".") ? service.substring(0, service.length() - 1) : service)
+                .getBytes(StandardCharsets.UTF_8);
+
+        final Set<NetworkInterface> nics = new LinkedHashSet<NetworkInterface>();
+        for (InetAddress adapter : adapters) {
+            if (adapter instanceof Inet4Address) {
+                final NetworkInterface nic = NetworkInterface.getByInetAddress(adapter);
+                if (nic != null) {
+                    nics.add(nic);
+                }
+            }
+        }
+
+        this.channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        try {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.bind(new InetSocketAddress(GROUP.getPort()));
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, 255);
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+            for (NetworkInterface nic : nics) {
+                try {
+                    channel.join(GROUP.getAddress(), nic);
+                    interfaces.add(nic);
+                } catch (IOException e) {
+                    log.debug("Can't use interface " + nic.getDisplayName() + " for mDNS: " + e.getMessage());
+                }
+            }
+            if (interfaces.isEmpty()) {
+                throw new SocketException("None of the " + nics.size() + " IPv4 interfaces supports multicast");
+            }
+            channel.configureBlocking(false);
+            this.selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        this.thread = new Thread(this::run, "riotctl-mdns");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Makes the querier ask for instances again at least this often, even if
+     * their records are still valid, so that those which went away without
+     * saying so are noticed. Their TTL is usually more than an hour.
+     *
+     * @param refreshInterval
+     *            the interval in milliseconds
+     */
+    void setRefreshInterval(long refreshInterval) {
+        this.refreshInterval = refreshInterval;
+        selector.wakeup();
+    }
+
+    /**
+     * @return the number of interfaces on which the querier listens
+     */
+    int getInterfaceCount() {
+        return interfaces.size();
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                long now = System.currentTimeMillis();
+                if (now >= nextQuery) {
+                    query(now);
+                    nextQuery = now + interval;
+                    interval = Math.min(interval * 2, Math.min(MAX_INTERVAL, refreshInterval / 2));
+                }
+                selector.select(Math.max(1, nextWakeup() - now));
+                selector.selectedKeys().clear();
+                while (!closed && channel.receive(in) != null) {
+                    in.flip();
+                    try {
+                        parse(System.currentTimeMillis());
+                    } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+                        log.debug("Ignoring malformed mDNS packet: " + e.getMessage());
+                    }
+                    in.clear();
+                }
+                now = System.currentTimeMillis();
+                expire(now);
+                report();
+
+                if (needsFollowUp() && now - lastQuery >= followUpDelay) {
+                    query(now);
+                    followUpDelay = Math.min(Math.max(followUpDelay * 2, FIRST_INTERVAL), MAX_INTERVAL);
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                log.error("mDNS query failed: " + e.getMessage());
+            }
+        } catch (RuntimeException e) {
+            log.error("mDNS querier stopped: " + e);
+        }
+    }
+
+    /**
+     * @return when the next query is due, a follow-up query for missing
+     *         records, or an instance expires
+     */
+    private long nextWakeup() {
+        long wakeup = nextQuery;
+        if (needsFollowUp()) {
+            wakeup = Math.min(wakeup, lastQuery + followUpDelay);
+        }
+        for (Instance instance : instances) {
+            wakeup = Math.min(wakeup, instance.getExpiry());
+        }
+        return wakeup;
+    }
+
+    /**
+     * Drops the instances whose PTR record expired, as they weren't confirmed
+     * by the responses to the queries which were sent during its lifetime
+     */
+    private void expire(long now) {
+        for (Iterator<Instance> it = instances.iterator(); it.hasNext();) {
+            final Instance instance = it.next();
+            if (now >= instance.getExpiry()) {
+                it.remove();
+                if (instance.reported) {
+                    listener.removed(instance.name);
+                }
+            }
+        }
+    }
+
+    private boolean needsFollowUp() {
+        for (Instance instance : instances) {
+            if (!instance.isResolved()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Asks for the service's instances, listing the known ones as answers, and
+     * for the records which are missing to resolve instances. Known answers
+     * which don't fit into one packet follow in further ones, each but the last
+     * marked as truncated.
+     */
+    private void query(long now) throws IOException {
+        for (Instance instance : instances) {
+            instance.addresses.removeIf(address -> address.isExpired(now));
+        }
+        startPacket();
+        int questions = 1;
+        writeName(service);
+        out.putShort((short) TYPE_PTR).putShort((short) CLASS_IN);
+        for (Instance instance : instances) {
+            // Those which don't fit are asked for once the others are resolved
+            if (instance.host == null && out.remaining() >= instanceNameLength(instance) + 4) {
+                writeInstanceName(instance);
+                out.putShort((short) TYPE_SRV).putShort((short) CLASS_IN);
+                questions++;
+            } else if (instance.host != null && instance.addresses.isEmpty()
+                    && out.remaining() >= nameLength(instance.host) + 4) {
+                writeName(instance.host);
+                out.putShort((short) TYPE_A).putShort((short) CLASS_IN);
+                questions++;
+            }
+        }
+        out.putShort(4, (short) questions);
+        // Known answers, unless they are past half their lifetime
+        int answers = 0;
+        for (Instance instance : instances) {
+            final long remaining = instance.ptrTtl - TimeUnit.MILLISECONDS.toSeconds(now - instance.ptrReceived);
+            if (remaining <= instance.ptrTtl / 2 || now - instance.ptrReceived >= refreshInterval) {
+                continue;
+            }
+            final int rdlength = instanceNameLength(instance);
+            if (out.remaining() < nameLength(service) + 10 + rdlength) {
+                out.putShort(2, (short) TRUNCATED);
+                out.putShort(6, (short) answers);
+                send();
+                startPacket();
+                answers = 0;
+            }
+            writeName(service);
+            out.putShort((short) TYPE_PTR).putShort((short) CLASS_IN).putInt((int) remaining);
+            out.putShort((short) rdlength);
+            writeInstanceName(instance);
+            answers++;
+        }
+        out.putShort(6, (short) answers);
+        send();
+        lastQuery = now;
+    }
+
+    /**
+     * Starts a packet in {@link #out}, after a header of zeros
+     */
+    private void startPacket() {
+        out.clear();
+        out.putLong(0).putInt(0);
+    }
+
+    /**
+     * Sends the packet in {@link #out} on all interfaces
+     */
+    private void send() throws IOException {
+        out.flip();
+        for (NetworkInterface nic : interfaces) {
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, nic);
+            channel.send(out, GROUP);
+            out.rewind();
+        }
+    }
+
+    private void writeInstanceName(Instance instance) {
+        out.put((byte) instance.label.length).put(instance.label);
+        writeName(service);
+    }
+
+    /**
+     * @return the encoded length of an instance's name, as written by
+     *         {@link #writeInstanceName(Instance)}
+     */
+    private int instanceNameLength(Instance instance) {
+        return 1 + instance.label.length + nameLength(service);
+    }
+
+    /**
+     * @return the encoded length of a dotted name, as written by
+     *         {@link #writeName(byte[])}: a length byte for each label instead
+     *         of its dot, one for the first label and the terminating zero
+     */
+    private static int nameLength(byte[] name) {
+        return name.length + 2;
+    }
+
+    /**
+     * Writes a dotted name as labels, uncompressed
+     */
+    private void writeName(byte[] name) {
+        int start = 0;
+        for (int i = 0; i <= name.length; i++) {
+            if (i == name.length || name[i] == '.') {
+                out.put((byte) (i - start)).put(name, start, i - start);
+                start = i + 1;
+            }
+        }
+        out.put((byte) 0);
+    }
+
+    private void parse(long now) {
+        if ((in.getShort(2) & 0x8000) == 0) {
+            // A query, such as our own
+            return;
+        }
+        final int questions = in.getShort(4) & 0xffff;
+        final int records = (in.getShort(6) & 0xffff) + (in.getShort(8) & 0xffff) + (in.getShort(10) & 0xffff);
+        int pos = 12;
+        for (int i = 0; i < questions; i++) {
+            pos = readName(pos, owner) + 4;
+        }
+        for (int i = 0; i < records; i++) {
+            pos = readName(pos, owner);
+            final int type = in.getShort(pos) & 0xffff;
+            final boolean flush = (in.getShort(pos + 2) & CACHE_FLUSH) != 0;
+            final long ttl = in.getInt(pos + 4) & 0xffffffffL;
+            final int length = in.getShort(pos + 8) & 0xffff;
+            final int rdata = pos + 10;
+            pos = rdata + length;
+            if (pos > in.limit()) {
+                throw new IndexOutOfBoundsException("Record beyond the end of the packet");
+            }
+            if (ttl == 0 && type == TYPE_SRV) {
+                // The instance's goodbye is what matters
+                continue;
+            }
+            switch (type) {
+            case TYPE_PTR:
+                if (owner.is(service)) {
+                    readName(rdata, target);
+                    if (target.endsWith(service) && target.firstLabel == target.length - service.length - 1) {
+                        onPointer(now, ttl);
+                    }
+                }
+                break;
+            case TYPE_SRV:
+                if (owner.endsWith(service) && owner.firstLabel == owner.length - service.length - 1) {
+                    readName(rdata + 6, target);
+                    onService(now, ttl);
+                }
+                break;
+            case TYPE_A:
+            case TYPE_AAAA:
+                if (length == 4 || length == 16) {
+                    onAddress(now, rdata, length, ttl, flush);
+                }
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    /**
+     * Handles a PTR record from the service to the instance in {@link #target}
+     */
+    private void onPointer(long now, long ttl) {
+        Instance instance = find(target);
+        if (ttl == 0) {
+            if (instance != null) {
+                instances.remove(instance);
+                listener.removed(instance.name);
+            }
+            return;
+        }
+        if (instance == null) {
+            instance = new Instance(target.copy(0, target.firstLabel));
+            instances.add(instance);
+            followUpDelay = FOLLOW_UP_DELAY;
+        }
+        instance.ptrReceived = now;
+        instance.ptrTtl = ttl;
+        instance.unreported = true;
+    }
+
+    /**
+     * Handles an SRV record from the instance in {@link #owner} to the host in
+     * {@link #target}. An instance which is only known from it lasts as long as
+     * the record.
+     */
+    private void onService(long now, long ttl) {
+        Instance instance = find(owner);
+        if (instance == null) {
+            instance = new Instance(owner.copy(0, owner.firstLabel));
+            instance.ptrReceived = now;
+            instance.ptrTtl = ttl;
+            instances.add(instance);
+        }
+        if (instance.host == null || !target.is(instance.host)) {
+            instance.host = target.copy(0, target.length);
+            instance.addresses.clear();
+            followUpDelay = FOLLOW_UP_DELAY;
+        }
+    }
+
+    /**
+     * Handles an A or AAAA record of the host in {@link #owner}. If it has the
+     * cache flush bit set, the host's addresses which weren't received along
+     * with it are replaced by it, and a TTL of 0 removes the address.
+     */
+    private void onAddress(long now, int rdata, int length, long ttl, boolean flush) {
+        for (Instance instance : instances) {
+            if (instance.host == null || !owner.is(instance.host)) {
+                continue;
+            }
+            Address known = null;
+            for (Iterator<Address> it = instance.addresses.iterator(); it.hasNext();) {
+                final Address address = it.next();
+                if (matches(address.raw, rdata, length)) {
+                    known = address;
+                } else if (flush && now - address.received >= FLUSH_DELAY) {
+                    it.remove();
+                    instance.unreported = true;
+                }
+            }
+            if (ttl == 0) {
+                if (known != null) {
+                    instance.addresses.remove(known);
+                    instance.unreported = true;
+                }
+                continue;
+            }
+            if (known == null) {
+                final byte[] raw = new byte[length];
+                for (int i = 0; i < length; i++) {
+                    raw[i] = in.get(rdata + i);
+                }
+                try {
+                    // Named by its literal, like JmDNS does, so that it is neither looked up in reverse, nor by a
+                    // .local name which the system's resolver may not know
+                    final InetAddress addr = InetAddress.getByAddress(raw);
+                    known = new Address(raw, InetAddress.getByAddress(addr.getHostAddress(), raw));
+                    instance.addresses.add(known);
+                    instance.unreported = true;
+                } catch (IOException e) {
+                    // Not expected, the length is checked
+                    log.debug(e.getMessage());
+                    continue;
+                }
+            }
+            known.received = now;
+            known.ttl = ttl;
+        }
+    }
+
+    private boolean matches(byte[] raw, int rdata, int length) {
+        if (raw.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (raw[i] != in.get(rdata + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Instance find(Name name) {
+        for (Instance instance : instances) {
+            if (name.isInstanceOf(instance.label, service)) {
+                return instance;
+            }
+        }
+        return null;
+    }
+
+    private void report() {
+        for (Instance instance : instances) {
+            if (instance.unreported && instance.isResolved()) {
+                instance.unreported = false;
+                instance.reported = true;
+                final List<InetAddress> addresses = new ArrayList<InetAddress>(instance.addresses.size());
+                for (Address address : instance.addresses) {
+                    addresses.add(address.addr);
+                }
+                listener.resolved(instance.name, addresses);
+            }
+        }
+    }
+
+    /**
+     * Reads a possibly compressed name into the given one
+     *
+     * @return the position after the name
+     */
+    private int readName(int pos, Name name) {
+        name.length = 0;
+        name.firstLabel = -1;
+        int end = -1;
+        int pointers = 0;
+        while (true) {
+            final int len = in.get(pos) & 0xff;
+            if ((len & 0xc0) == 0xc0) {
+                if (end < 0) {
+                    end = pos + 2;
+                }
+                if (++pointers > MAX_POINTERS) {
+                    throw new IllegalArgumentException("Too many name pointers");
+                }
+                pos = ((len & 0x3f) << 8) | (in.get(pos + 1) & 0xff);
+                continue;
+            }
+            if (len == 0) {
+                break;
+            }
+            if (len > 63) {
+                throw new IllegalArgumentException("Unsupported label type " + (len >> 6));
+            }
+            if (name.length + len + 1 > name.bytes.length) {
+                throw new IllegalArgumentException("Name too long");
+            }
+            if (name.length > 0) {
+                name.bytes[name.length++] = '.';
+            }
+            for (int i = 0; i < len; i++) {
+                name.bytes[name.length++] = in.get(pos + 1 + i);
+            }
+            if (name.firstLabel < 0) {
+                name.firstLabel = name.length;
+            }
+            pos += len + 1;
+        }
+        if (name.firstLabel < 0) {
+            name.firstLabel = 0;
+        }
+        return end < 0 ? pos + 1 : end;
+    }
+
+    private static byte lowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        selector.close();
+        channel.close();
+    }
+}
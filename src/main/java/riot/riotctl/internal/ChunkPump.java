@@ -0,0 +1,205 @@
+package riot.riotctl.internal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decouples a producer of data, such as tar and compression, from the stream
+ * to which it is sent, by handing it over in chunks through a bounded queue to
+ * a thread of its own. Compressing the next chunk thus overlaps with sending
+ * the previous one, and the queue's occupancy shows which side is the
+ * bottleneck. The chunks' buffers are recycled.
+ */
+class ChunkPump extends OutputStream {
+    private static final long POLL_INTERVAL = 100;
+
+    private static class Chunk {
+        final byte[] data;
+        int length = 0;
+
+        Chunk(int size) {
+            data = new byte[size];
+        }
+    }
+
+    private static final Chunk END = new Chunk(0);
+
+    private final OutputStream target;
+    private final String name;
+    private final PipelineStats stats;
+    private final int capacity;
+    private final BlockingQueue<Chunk> queue;
+    private final BlockingQueue<Chunk> free;
+    private final Thread sender;
+    private volatile IOException failure;
+    private Chunk chunk;
+    private boolean closed = false;
+
+    private long chunks, occupancy, producerWait;
+    private int maxOccupancy;
+    private volatile long consumerWait;
+
+    /**
+     * @param target
+     *            the stream to which the data is sent
+     * @param name
+     *            the name of the queue in the statistics, and of the sending
+     *            thread
+     * @param stats
+     *            where to record the queue's use, or null
+     * @param chunkSize
+     *            the size of each chunk in bytes
+     * @param capacity
+     *            the maximum number of chunks waiting to be sent
+     */
+    ChunkPump(OutputStream target, String name, PipelineStats stats, int chunkSize, int capacity) {
+        this.target = target;
+        this.name = name;
+        this.stats = stats;
+        this.capacity = capacity;
+        // One more, for the end marker
+        this.queue = new ArrayBlockingQueue<Chunk>(capacity + 1);
+        // Enough buffers for a full queue and the one being filled
+        this.free = new ArrayBlockingQueue<Chunk>(capacity + 1);
+        for (int i = 0; i < capacity + 1; i++) {
+            free.add(new Chunk(chunkSize));
+        }
+        this.chunk = free.remove();
+        this.sender = new Thread(this::send, "riotctl-" + name);
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    private void send() {
+        try {
+            while (true) {
+                final long start = System.nanoTime();
+                final Chunk next = queue.take();
+                consumerWait += System.nanoTime() - start;
+                if (next == END) {
+                    break;
+                }
+                target.write(next.data, 0, next.length);
+                next.length = 0;
+                free.put(next);
+            }
+            target.flush();
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            failure = new InterruptedIOException(e.getMessage());
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (chunk.length == chunk.data.length) {
+            handOver();
+        }
+        chunk.data[chunk.length++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (chunk.length == chunk.data.length) {
+                handOver();
+            }
+            final int n = Math.min(len, chunk.data.length - chunk.length);
+            System.arraycopy(b, off, chunk.data, chunk.length, n);
+            chunk.length += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Queues the current chunk for sending, and takes a free one to fill
+     */
+    private void handOver() throws IOException {
+        if (chunk.length == 0) {
+            return;
+        }
+        final int waiting = queue.size();
+        occupancy += waiting;
+        maxOccupancy = Math.max(maxOccupancy, waiting);
+        chunks++;
+        enqueue(chunk);
+        chunk = null;
+
+        final long start = System.nanoTime();
+        try {
+            while ((chunk = free.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS)) == null) {
+                checkSender();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } finally {
+            producerWait += System.nanoTime() - start;
+        }
+    }
+
+    private void enqueue(Chunk c) throws IOException {
+        try {
+            while (!queue.offer(c, POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+                checkSender();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        }
+    }
+
+    private void checkSender() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (!sender.isAlive()) {
+            throw new IOException("Sending to " + name + " stopped unexpectedly");
+        }
+    }
+
+    /**
+     * Data is only sent in whole chunks, or when the stream is closed, so this
+     * does nothing
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Sends the remaining data, waits until it has been sent, and closes the
+     * target stream
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            handOver();
+            enqueue(END);
+            sender.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } finally {
+            if (sender.isAlive()) {
+                sender.interrupt();
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        if (stats != null) {
+            stats.addQueue(name, capacity, chunks, occupancy, maxOccupancy, producerWait, consumerWait);
+        }
+        target.close();
+    }
+}
@@ -0,0 +1,21 @@
+package riot.riotctl.internal;
+
+/**
+ * The outcome of a single command run as part of a batch
+ */
+public class CommandResult {
+    public final String command;
+    public final int exitStatus;
+    public final String stdout, stderr;
+
+    public CommandResult(String command, int exitStatus, String stdout, String stderr) {
+        this.command = command;
+        this.exitStatus = exitStatus;
+        this.stdout = stdout;
+        this.stderr = stderr;
+    }
+
+    public boolean isSuccess() {
+        return exitStatus == 0;
+    }
+}
@@ -0,0 +1,121 @@
+package riot.riotctl.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import riot.riotctl.Logger;
+
+/**
+ * A device-wide store of files, named by their SHA-256 hash, which are
+ * hardlinked into the directories of the packages that use them. Libraries
+ * which several packages share are thus uploaded and stored only once. Files
+ * in the store which are no longer linked anywhere are deleted by
+ * {@link #collectGarbage()}.
+ */
+class ContentStore {
+    static final String STORE_DIR = "/var/lib/riot/cas";
+    private static final String PARTIAL_SUFFIX = ".part";
+    /**
+     * How long an unlinked file may go unmodified before it counts as
+     * abandoned, rather than being uploaded or about to be linked
+     */
+    private static final int GRACE_MINUTES = 60;
+
+    private final SSHClient client;
+    private final Logger log;
+
+    ContentStore(SSHClient client, Logger log) {
+        this.client = client;
+        this.log = log;
+    }
+
+    /**
+     * @return true if the file should be kept in the store, i.e. if it's a
+     *         library that other packages are likely to use as well
+     */
+    static boolean accepts(Manifest.Entry entry) {
+        return entry.path.endsWith(".jar");
+    }
+
+    /**
+     * Uploads the files which aren't in the store yet, and links all of them
+     * into a directory. A file is only added to the store once it has been
+     * uploaded completely. Uploads get the current time rather than that of
+     * the local file, so that garbage collection by another deployment keeps
+     * them until they are linked.
+     *
+     * @param lDir
+     *            the local base directory
+     * @param entries
+     *            the files to install
+     * @param rDir
+     *            the remote base directory
+     * @throws IOException
+     *             if uploading or linking fails
+     */
+    void install(File lDir, Collection<Manifest.Entry> entries, String rDir) throws IOException {
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        final Map<String, Manifest.Entry> blobs = new LinkedHashMap<String, Manifest.Entry>();
+        for (Manifest.Entry entry : entries) {
+            blobs.putIfAbsent(entry.hash, entry);
+        }
+        final Set<String> missing = new HashSet<String>(blobs.keySet());
+        missing.removeAll(listBlobs(blobs.keySet()));
+
+        if (!missing.isEmpty()) {
+            log.info("Uploading " + missing.size() + " of " + blobs.size() + " shared files to " + client.getHost());
+            client.mkDir(STORE_DIR);
+            for (String hash : missing) {
+                final String blob = STORE_DIR + '/' + hash;
+                client.copy(new File(lDir, blobs.get(hash).path), blob + PARTIAL_SUFFIX, false);
+                client.exec("sudo mv -f " + blob + PARTIAL_SUFFIX + ' ' + blob, true);
+            }
+        }
+
+        // Hardlinks only work within a filesystem, so fall back to copying
+        final StringBuilder script = new StringBuilder();
+        final Set<String> rDirs = new TreeSet<String>();
+        for (Manifest.Entry entry : entries) {
+            final String path = rDir + '/' + entry.path;
+            rDirs.add(SSHClient.quote(path.substring(0, path.lastIndexOf('/'))));
+            script.append("ln -f ").append(entry.hash).append(' ').append(SSHClient.quote(path))
+                    .append(" 2>/dev/null || cp -f ").append(entry.hash).append(' ').append(SSHClient.quote(path))
+                    .append(" || exit 1\n");
+        }
+        script.insert(0, "cd " + STORE_DIR + " && mkdir -p " + String.join(" ", rDirs) + " || exit 1\n");
+        client.exec("sudo sh -c " + SSHClient.quote(script.toString()), true);
+    }
+
+    /**
+     * @return those of the given blobs which are already in the store
+     */
+    private Set<String> listBlobs(Collection<String> hashes) throws IOException {
+        final String command = "cd " + STORE_DIR + " 2>/dev/null && for h in " + String.join(" ", hashes)
+                + "; do [ -f \"$h\" ] && echo \"$h\"; done; true";
+        final String stdout = client.execBatch(Collections.singletonList(command)).get(0).stdout.trim();
+        return stdout.isEmpty() ? Collections.<String>emptySet()
+                : new HashSet<String>(Arrays.asList(stdout.split("\\s+")));
+    }
+
+    /**
+     * Deletes the files which are no longer linked into any package, as well as
+     * those whose upload was interrupted. Files are only deleted once they are
+     * old enough not to belong to another deployment which is still running,
+     * and may still be uploading or about to link them.
+     */
+    void collectGarbage() throws IOException {
+        client.exec("sudo find " + STORE_DIR + " -maxdepth 1 -type f -links 1 -mmin +" + GRACE_MINUTES
+                + " -delete 2>/dev/null; true", true);
+    }
+}
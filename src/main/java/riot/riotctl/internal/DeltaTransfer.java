@@ -0,0 +1,269 @@
+package riot.riotctl.internal;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes the difference between a local file and an older version of it on
+ * the device, in the manner of rsync: The device sends a weak (Adler-32) and a
+ * strong (MD5) checksum of every block of its version, and the local file is
+ * scanned with a rolling checksum for blocks the device already has. Only the
+ * remaining bytes are sent, along with instructions to copy the other blocks
+ * from the old file.
+ * <p>
+ * The device side is handled by a small Python script, which writes the new
+ * version to a temporary file, verifies its SHA-256 hash, and then renames it
+ * over the old version.
+ */
+class DeltaTransfer {
+    private static final int MIN_BLOCK_SIZE = 1024;
+    private static final int MAX_BLOCK_SIZE = 64 * 1024;
+    private static final int ADLER_MOD = 65521;
+    private static final int MAX_LITERAL = 1024 * 1024;
+
+    /** Exit status of the helper if the remote file doesn't exist */
+    static final int RC_NOT_FOUND = 2;
+
+    private static final String HELPER = String.join("\n", //
+            "import hashlib, os, struct, sys, tempfile, zlib", //
+            "mode, path, bs = sys.argv[1], sys.argv[2], int(sys.argv[3])", //
+            "if not os.path.isfile(path):", //
+            "    sys.exit(2)", //
+            "if mode == \"sig\":", //
+            "    with open(path, \"rb\") as f:", //
+            "        while True:", //
+            "            b = f.read(bs)", //
+            "            if len(b) < bs:", //
+            "                break", //
+            "            sys.stdout.write(\"%08x %s\\n\" % (zlib.adler32(b) & 0xffffffff, hashlib.md5(b).hexdigest()))", //
+            "    sys.exit(0)", //
+            "inp = sys.stdin.buffer", //
+            "fd, tmp = tempfile.mkstemp(dir=os.path.dirname(path), prefix=\".riot-delta-\")", //
+            "h = hashlib.sha256()", //
+            "try:", //
+            "    with open(path, \"rb\") as old, os.fdopen(fd, \"wb\") as new:", //
+            "        while True:", //
+            "            op = inp.read(1)", //
+            "            if op == b\"C\":", //
+            "                start, count = struct.unpack(\">II\", inp.read(8))", //
+            "                old.seek(start * bs)", //
+            "                for i in range(count):", //
+            "                    b = old.read(bs)", //
+            "                    h.update(b)", //
+            "                    new.write(b)", //
+            "            elif op == b\"L\":", //
+            "                n = struct.unpack(\">I\", inp.read(4))[0]", //
+            "                b = inp.read(n)", //
+            "                if len(b) != n:", //
+            "                    sys.exit(4)", //
+            "                h.update(b)", //
+            "                new.write(b)", //
+            "            elif op == b\"E\":", //
+            "                expected = inp.read(32)", //
+            "                mtime = struct.unpack(\">q\", inp.read(8))[0]", //
+            "                break", //
+            "            else:", //
+            "                sys.exit(4)", //
+            "    if h.digest() != expected:", //
+            "        sys.stderr.write(\"Checksum mismatch after patching \" + path + \"\\n\")", //
+            "        sys.exit(3)", //
+            "    os.chmod(tmp, 0o644)", //
+            "    os.utime(tmp, (mtime, mtime))", //
+            "    os.replace(tmp, path)", //
+            "    tmp = None", //
+            "finally:", //
+            "    if tmp:", //
+            "        os.unlink(tmp)");
+
+    private final File lFile;
+    private final int blockSize;
+    private final Map<Integer, List<Integer>> weakSums = new HashMap<Integer, List<Integer>>();
+    private final List<String> strongSums = new ArrayList<String>();
+    private long literalBytes;
+
+    DeltaTransfer(File lFile) {
+        this.lFile = lFile;
+        // As rsync does, use blocks of roughly the square root of the file size
+        int size = (int) Math.sqrt(lFile.length());
+        this.blockSize = Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size - size % 64));
+    }
+
+    /**
+     * @return the command which lists the checksums of the remote file's blocks
+     */
+    String getSignatureCommand(String rFile) {
+        return "python3 -c " + SSHClient.quote(HELPER) + " sig " + SSHClient.quote(rFile) + " " + blockSize;
+    }
+
+    /**
+     * @return the command which rebuilds the remote file from the instructions
+     *         sent to its standard input
+     */
+    String getPatchCommand(String rFile) {
+        return "sudo python3 -c " + SSHClient.quote(HELPER) + " patch " + SSHClient.quote(rFile) + " " + blockSize;
+    }
+
+    /**
+     * Reads the output of the signature command
+     */
+    void setSignatures(String signatures) throws IOException {
+        for (String line : signatures.split("\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] fields = line.split(" ");
+            if (fields.length != 2) {
+                throw new IOException("Unexpected block signature: " + line);
+            }
+            int weak = (int) Long.parseLong(fields[0], 16);
+            List<Integer> blocks = weakSums.get(weak);
+            if (blocks == null) {
+                blocks = new ArrayList<Integer>(1);
+                weakSums.put(weak, blocks);
+            }
+            blocks.add(strongSums.size());
+            strongSums.add(fields[1]);
+        }
+    }
+
+    /**
+     * Scans the local file, and writes the instructions to rebuild it from the
+     * remote version
+     */
+    void writeInstructions(OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 64 * 1024));
+        try (RandomAccessFile raf = new RandomAccessFile(lFile, "r"); FileChannel fc = raf.getChannel()) {
+            final MappedByteBuffer data = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            final int length = data.limit();
+            final MessageDigest md5 = newMd5();
+
+            int literalStart = 0;
+            int pos = 0;
+            int copyStart = -1;
+            int copyCount = 0;
+            int a = 0, b = 0;
+            boolean rolling = false;
+
+            while (pos + blockSize <= length) {
+                if (!rolling) {
+                    // Compute the checksum of the block at pos from scratch
+                    a = 1;
+                    b = 0;
+                    for (int i = pos; i < pos + blockSize; i++) {
+                        a = (a + (data.get(i) & 0xff)) % ADLER_MOD;
+                        b = (b + a) % ADLER_MOD;
+                    }
+                    rolling = true;
+                }
+
+                final int block = findBlock((b << 16) | a, data, pos, md5);
+                if (block >= 0) {
+                    if (pos > literalStart) {
+                        writeCopy(out, copyStart, copyCount);
+                        copyCount = 0;
+                        writeLiteral(out, data, literalStart, pos);
+                    }
+                    if (copyCount > 0 && copyStart + copyCount == block) {
+                        copyCount++;
+                    } else {
+                        writeCopy(out, copyStart, copyCount);
+                        copyStart = block;
+                        copyCount = 1;
+                    }
+                    pos += blockSize;
+                    literalStart = pos;
+                    rolling = false;
+                    continue;
+                }
+
+                if (pos + blockSize < length) {
+                    // Roll the checksum forward by one byte
+                    final int out0 = data.get(pos) & 0xff;
+                    final int in0 = data.get(pos + blockSize) & 0xff;
+                    a = Math.floorMod(a - out0 + in0, ADLER_MOD);
+                    b = (int) Math.floorMod(b - (long) blockSize * out0 + a - 1, (long) ADLER_MOD);
+                }
+                pos++;
+            }
+
+            writeCopy(out, copyStart, copyCount);
+            writeLiteral(out, data, literalStart, length);
+
+            data.rewind();
+            final MessageDigest sha256 = Manifest.newDigest();
+            sha256.update(data);
+            out.writeByte('E');
+            out.write(sha256.digest());
+            out.writeLong(lFile.lastModified() / 1000);
+        }
+        out.flush();
+    }
+
+    /**
+     * @return the number of bytes which had to be sent as-is
+     */
+    long getLiteralBytes() {
+        return literalBytes;
+    }
+
+    private int findBlock(int weak, ByteBuffer data, int pos, MessageDigest md5) {
+        final List<Integer> candidates = weakSums.get(weak);
+        if (candidates == null) {
+            return -1;
+        }
+        ByteBuffer block = data.duplicate();
+        block.limit(pos + blockSize).position(pos);
+        md5.reset();
+        md5.update(block);
+        final String strong = Manifest.toHex(md5.digest());
+        for (Integer candidate : candidates) {
+            if (strongSums.get(candidate).equals(strong)) {
+                return candidate;
+            }
+        }
+        return -1;
+    }
+
+    private static void writeCopy(DataOutputStream out, int start, int count) throws IOException {
+        if (count > 0) {
+            out.writeByte('C');
+            out.writeInt(start);
+            out.writeInt(count);
+        }
+    }
+
+    private void writeLiteral(DataOutputStream out, ByteBuffer data, int start, int end) throws IOException {
+        byte[] buf = new byte[Math.min(MAX_LITERAL, Math.max(0, end - start))];
+        for (int pos = start; pos < end; pos += buf.length) {
+            final int len = Math.min(buf.length, end - pos);
+            ByteBuffer slice = data.duplicate();
+            slice.position(pos);
+            slice.get(buf, 0, len);
+            out.writeByte('L');
+            out.writeInt(len);
+            out.write(buf, 0, len);
+            literalBytes += len;
+        }
+    }
+
+    private static MessageDigest newMd5() throws IOException {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+}
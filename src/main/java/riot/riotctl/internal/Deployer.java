@@ -0,0 +1,304 @@
+package riot.riotctl.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import riot.riotctl.Logger;
+
+/**
+ * Deploys the contents of a stage directory to a device. The manifest of the
+ * previous deployment is read from the device, and only the files that were
+ * added or changed since then are copied, while those that no longer exist are
+ * deleted.
+ * <p>
+ * Versioned packages are deployed into a new release directory, and the
+ * symlink to the current release is switched over to it once it is complete.
+ * A few old releases are kept, so that the package can be rolled back.
+ */
+public class Deployer {
+    /** Changed files from this size on are sent as a delta to the old version */
+    private static final long DELTA_THRESHOLD = 1024 * 1024;
+    /** The number of releases kept on the device, including the current one */
+    private static final int KEEP_RELEASES = 3;
+    private static final String MANIFEST_FILE_NAME = "manifest.lst";
+    private static final DateTimeFormatter RELEASE_ID_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+
+    private final SSHClient client;
+    private final Logger log;
+    private final ContentStore store;
+
+    public Deployer(SSHClient client, Logger log) {
+        this(client, log, false);
+    }
+
+    /**
+     * @param sharedStore
+     *            true to keep libraries in a store on the device, which is shared
+     *            by all packages, and link them into the package from there
+     */
+    public Deployer(SSHClient client, Logger log, boolean sharedStore) {
+        this.client = client;
+        this.log = log;
+        this.store = sharedStore ? new ContentStore(client, log) : null;
+    }
+
+    /**
+     * @param stageDir
+     *            the local directory to deploy
+     * @param manifest
+     *            the manifest of the local directory
+     * @param pkgConf
+     *            the package's configuration
+     * @return true if anything was deployed, false if the device was up to date
+     * @throws IOException
+     *             if copying fails
+     */
+    public boolean deploy(File stageDir, Manifest manifest, PackageConfig pkgConf) throws IOException {
+        return deploy(stageDir, manifest, pkgConf, newReleaseId());
+    }
+
+    /**
+     * @param stageDir
+     *            the local directory to deploy
+     * @param manifest
+     *            the manifest of the local directory
+     * @param pkgConf
+     *            the package's configuration
+     * @param releaseId
+     *            the name of the release to create, if the package is versioned
+     * @return true if anything was deployed, false if the device was up to date
+     * @throws IOException
+     *             if copying fails
+     */
+    public boolean deploy(File stageDir, Manifest manifest, PackageConfig pkgConf, String releaseId)
+            throws IOException {
+        return deploy(stageDir, CompletableFuture.completedFuture(manifest), pkgConf, releaseId);
+    }
+
+    /**
+     * Deploys a stage directory whose manifest is still being built. The
+     * manifest of the previous deployment is read from the device in the
+     * meantime. If the client has {@link PipelineStats}, the time each stage
+     * took is recorded in them.
+     *
+     * @param stageDir
+     *            the local directory to deploy
+     * @param localManifest
+     *            the manifest of the local directory, once it is complete
+     * @param pkgConf
+     *            the package's configuration
+     * @param releaseId
+     *            the name of the release to create, if the package is versioned
+     * @return true if anything was deployed, false if the device was up to date
+     * @throws IOException
+     *             if building the manifest or copying fails
+     */
+    public boolean deploy(File stageDir, Future<Manifest> localManifest, PackageConfig pkgConf, String releaseId)
+            throws IOException {
+        long time = System.nanoTime();
+        final Manifest previous = Manifest.parse(client.read(pkgConf.getManifestFileName(), true));
+        time = record("read remote manifest", time);
+        final Manifest manifest = await(localManifest);
+        time = record("wait for local manifest", time);
+
+        final UploadJournal journal = UploadJournal.open(stageDir, client);
+        if (pkgConf.versioned && journal.getRelease() != null) {
+            releaseId = journal.getRelease();
+        }
+        final String rDir = pkgConf.versioned ? pkgConf.getReleaseDir(releaseId) : pkgConf.binDir;
+
+        if (previous.isEmpty() && store == null) {
+            log.info("No previous deployment found on " + client.getHost() + ", copying all files");
+            if (pkgConf.versioned) {
+                prepareRelease(pkgConf, releaseId, false, journal);
+            }
+            if (journal.isEmpty()) {
+                client.copyDir(stageDir, rDir, manifest, journal);
+            } else {
+                client.copyFiles(stageDir, pending(journal, rDir, manifest.getEntries()), rDir, manifest, journal);
+            }
+        } else {
+            final List<Manifest.Entry> changed = new ArrayList<Manifest.Entry>();
+            final List<Manifest.Entry> patched = new ArrayList<Manifest.Entry>();
+            final List<Manifest.Entry> stored = new ArrayList<Manifest.Entry>();
+            for (Manifest.Entry entry : manifest.changedFrom(previous)) {
+                if (store != null && ContentStore.accepts(entry)) {
+                    stored.add(entry);
+                } else if (entry.size >= DELTA_THRESHOLD && previous.get(entry.path) != null) {
+                    patched.add(entry);
+                } else {
+                    changed.add(entry);
+                }
+            }
+            final List<String> removed = manifest.removedFrom(previous);
+
+            if (changed.isEmpty() && patched.isEmpty() && stored.isEmpty() && removed.isEmpty()) {
+                log.info("No files have changed since last deployment to " + client.getHost());
+                journal.delete();
+                return false;
+            }
+            if (pkgConf.versioned) {
+                prepareRelease(pkgConf, releaseId, !previous.isEmpty(), journal);
+            }
+            log.info("Copying " + (changed.size() + patched.size() + stored.size()) + " changed files ("
+                    + patched.size() + " as delta, " + stored.size() + " shared) and deleting " + removed.size()
+                    + " removed files on " + client.getHost());
+            client.copyFiles(stageDir, pending(journal, rDir, changed), rDir, manifest, journal);
+            journal.done(rDir, changed);
+            for (String path : pending(journal, rDir, patched)) {
+                client.copyDelta(new File(stageDir, path), rDir + '/' + path);
+                journal.done(rDir, Collections.singleton(manifest.get(path)));
+            }
+            if (store != null) {
+                store.install(stageDir, stored, rDir);
+                journal.done(rDir, stored);
+            }
+            client.delete(rDir, removed);
+        }
+        time = record("transfer files", time);
+
+        // Only recorded once everything was copied, so that an interrupted
+        // deployment is completed by the next one.
+        client.write(manifest.toString(), rDir + '/' + MANIFEST_FILE_NAME);
+        if (pkgConf.versioned) {
+            client.exec(getActivateCommand(pkgConf, releaseId), true);
+            log.info("Switched " + pkgConf.packageName + " to release " + releaseId + " on " + client.getHost());
+        }
+        journal.delete();
+        if (store != null) {
+            store.collectGarbage();
+        }
+        record("finish deployment", time);
+        return true;
+    }
+
+    private static Manifest await(Future<Manifest> manifest) throws IOException {
+        try {
+            return manifest.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                cause = cause.getCause();
+            }
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Records the time of a stage, if the client collects statistics
+     *
+     * @return the current time, for timing the next stage
+     */
+    private long record(String stage, long start) {
+        final long now = System.nanoTime();
+        if (client.getStats() != null) {
+            client.getStats().addTime(stage, now - start);
+        }
+        return now;
+    }
+
+    /**
+     * @return the paths of those files which an interrupted deployment didn't
+     *         copy yet
+     */
+    private List<String> pending(UploadJournal journal, String rDir, Collection<Manifest.Entry> entries) {
+        final List<String> pending = new ArrayList<String>();
+        for (Manifest.Entry entry : entries) {
+            if (!journal.isDone(rDir + '/' + entry.path, entry.hash)) {
+                pending.add(entry.path);
+            }
+        }
+        if (pending.size() < entries.size()) {
+            log.info("Skipping " + (entries.size() - pending.size()) + " files already copied to "
+                    + client.getHost() + " by an interrupted deployment");
+        }
+        return pending;
+    }
+
+    /**
+     * Creates the directory for a new release. It starts out as a copy of the
+     * current release, made of hardlinks to its files, so that only the changes
+     * need to be copied. All transfer methods replace files rather than writing
+     * into them, and so does {@link SSHClient#write(String, String)}, so the
+     * current release remains untouched. The copy is made
+     * under a temporary name, so that a release directory that exists is always
+     * complete, and an interrupted deployment can be continued in it.
+     */
+    private void prepareRelease(PackageConfig pkgConf, String releaseId, boolean fromCurrent, UploadJournal journal)
+            throws IOException {
+        final String dir = SSHClient.quote(pkgConf.getReleaseDir(releaseId));
+        final String tmp = SSHClient.quote(pkgConf.getReleasesDir() + "/." + releaseId + ".tmp");
+        final String script = "if [ -d " + dir + " ]; then echo resumed; else rm -rf " + tmp + " && mkdir -p " + tmp
+                + (fromCurrent ? " && cp -al " + SSHClient.quote(pkgConf.getCurrentDir()) + "/. " + tmp : "")
+                + " && mv " + tmp + ' ' + dir + "; fi";
+        final CommandResult result = client
+                .execBatch(Collections.singletonList("sudo sh -c " + SSHClient.quote(script))).get(0);
+        if (!result.isSuccess()) {
+            throw new IOException("Creating release " + releaseId + " on " + client.getHost()
+                    + " returned exit status " + result.exitStatus);
+        }
+
+        if (result.stdout.trim().equals("resumed")) {
+            log.info("Continuing interrupted deployment of release " + releaseId + " on " + client.getHost());
+        } else {
+            // Whatever was copied before went elsewhere
+            journal.delete();
+            journal.setRelease(releaseId);
+        }
+    }
+
+    /**
+     * @return a name for a new release, which sorts after those of all previous
+     *         releases
+     */
+    public static String newReleaseId() {
+        return RELEASE_ID_FORMAT.format(LocalDateTime.now());
+    }
+
+    /**
+     * Returns the command which makes a release the current one, by replacing the
+     * symlink to the current release in a single rename, and then deletes old
+     * releases.
+     */
+    public static String getActivateCommand(PackageConfig pkgConf, String releaseId) {
+        final String script = "cd " + SSHClient.quote(pkgConf.binDir) //
+                + " && ln -sfn releases/" + releaseId + " current.tmp && mv -Tf current.tmp current" //
+                + " && cd releases && cur=$(basename \"$(readlink ../current)\")" //
+                + " && ls -1 | sort -r | tail -n +" + (KEEP_RELEASES + 1) + " | grep -vx \"$cur\" | xargs -r rm -rf --";
+        return "sudo sh -c " + SSHClient.quote(script);
+    }
+
+    /**
+     * Makes the release before the current one the current one again. No files
+     * are transferred.
+     * 
+     * @return the name of the release that is now current, or null if there is
+     *         no release before the current one
+     * @throws IOException
+     *             if the release couldn't be switched
+     */
+    public String rollback(PackageConfig pkgConf) throws IOException {
+        final String script = "cd " + SSHClient.quote(pkgConf.binDir) //
+                + " && cur=$(basename \"$(readlink current)\")" //
+                + " && prev=$(ls -1 releases | sort | grep -B1 -x \"$cur\" | head -n 1)" //
+                + " && [ -n \"$prev\" ] && [ \"$prev\" != \"$cur\" ]" //
+                + " && ln -sfn \"releases/$prev\" current.tmp && mv -Tf current.tmp current && echo \"$prev\"";
+        final CommandResult result = client
+                .execBatch(Collections.singletonList("sudo sh -c " + SSHClient.quote(script))).get(0);
+        return result.isSuccess() ? result.stdout.trim() : null;
+    }
+}
@@ -0,0 +1,27 @@
+package riot.riotctl.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * A way of copying files from a local directory to the device, as selected by
+ * a target's {@link riot.riotctl.Target.TransferMethod}. Files end up owned by
+ * root, with mode 0644.
+ */
+interface FileTransfer {
+
+    /**
+     * @param lDir
+     *            the local base directory
+     * @param paths
+     *            the files and directories to copy, relative to the base
+     *            directory and separated by '/'. Directories are created, but
+     *            only the files listed are copied.
+     * @param rDir
+     *            the remote base directory
+     * @throws IOException
+     *             if copying fails
+     */
+    void copyFiles(File lDir, Collection<String> paths, String rDir) throws IOException;
+}
@@ -0,0 +1,209 @@
+package riot.riotctl.internal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.Session;
+
+import riot.riotctl.Logger;
+
+/**
+ * The SSH settings which give the best transfer rate to a host: the cipher and
+ * MAC, and whether to compress. A slow device is usually limited by its CPU, a
+ * fast one on a slow network by the bandwidth, so they are measured with a
+ * short probe on the first connection to a host, and cached in
+ * ~/.riotctl/profiles.properties for later sessions.
+ */
+final class LinkProfile {
+    private static final File CACHE_FILE = new File(System.getProperty("user.home"),
+            ".riotctl/profiles.properties");
+    private static final long MAX_AGE = TimeUnit.DAYS.toMillis(30);
+    private static final int PROBE_SIZE = 1024 * 1024;
+    private static final int WARMUP_SIZE = 64 * 1024;
+    private static final String COMPRESSION = "zlib@openssh.com,zlib";
+
+    /**
+     * The cipher and MAC combinations to compare: the cheapest ones, and strong
+     * ones (JSch supports neither chacha20 nor the GCM ciphers).
+     */
+    private static final String[][] CANDIDATES = { { "aes128-ctr", "hmac-sha1" },
+            { "aes256-ctr", "hmac-sha2-256" } };
+
+    final String cipher, mac;
+    final boolean compression;
+    /** The measured transfer rate, in MB/s */
+    final double throughput;
+    final long measured;
+
+    private LinkProfile(String cipher, String mac, boolean compression, double throughput, long measured) {
+        this.cipher = cipher;
+        this.mac = mac;
+        this.compression = compression;
+        this.throughput = throughput;
+        this.measured = measured;
+    }
+
+    /**
+     * Makes the session prefer this profile's settings. If the session is
+     * already connected, they only take effect after the next key exchange.
+     */
+    void applyTo(Session session) {
+        for (String direction : new String[] { ".c2s", ".s2c" }) {
+            session.setConfig("cipher" + direction, prefer(cipher, JSch.getConfig("cipher" + direction)));
+            session.setConfig("mac" + direction, prefer(mac, JSch.getConfig("mac" + direction)));
+            session.setConfig("compression" + direction, compression ? COMPRESSION + ",none" : "none");
+        }
+    }
+
+    private static String prefer(String first, String defaults) {
+        StringBuilder sb = new StringBuilder(first);
+        for (String name : defaults.split(",")) {
+            if (!name.equals(first)) {
+                sb.append(',').append(name);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the cached profile for a host, or null if there is none or if it
+     *         has expired
+     */
+    static synchronized LinkProfile load(String key) {
+        final String[] value = readCache().getProperty(key, "").split(" ");
+        if (value.length != 5) {
+            return null;
+        }
+        try {
+            LinkProfile profile = new LinkProfile(value[0], value[1], "zlib".equals(value[2]),
+                    Double.parseDouble(value[3]), Long.parseLong(value[4]));
+            return System.currentTimeMillis() - profile.measured > MAX_AGE ? null : profile;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Records the profile for a host in the cache
+     */
+    static synchronized void save(String key, LinkProfile profile) throws IOException {
+        final Properties cache = readCache();
+        cache.setProperty(key, profile.cipher + ' ' + profile.mac + ' ' + (profile.compression ? "zlib" : "none")
+                + ' ' + profile.throughput + ' ' + profile.measured);
+
+        CACHE_FILE.getParentFile().mkdirs();
+        final File tmpFile = new File(CACHE_FILE.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmpFile)) {
+            cache.store(out, "SSH settings per host, as measured by riotctl");
+        }
+        Files.move(tmpFile.toPath(), CACHE_FILE.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static Properties readCache() {
+        final Properties cache = new Properties();
+        if (CACHE_FILE.isFile()) {
+            try (InputStream in = new FileInputStream(CACHE_FILE)) {
+                cache.load(in);
+            } catch (IOException e) {
+                // Just measure again
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Measures the transfer rate of each candidate cipher and MAC, then of the
+     * fastest with compression, and leaves the session using the best of them.
+     */
+    static LinkProfile probe(Session session, Logger log) throws Exception {
+        final byte[] sample = createSample();
+        LinkProfile best = null;
+        for (String[] candidate : CANDIDATES) {
+            LinkProfile profile = measure(session, candidate[0], candidate[1], false, sample);
+            log.debug("Probed " + session.getHost() + ": " + profile);
+            if (best == null || profile.throughput > best.throughput) {
+                best = profile;
+            }
+        }
+
+        LinkProfile compressed = measure(session, best.cipher, best.mac, true, sample);
+        log.debug("Probed " + session.getHost() + ": " + compressed);
+        if (compressed.throughput > best.throughput) {
+            return compressed;
+        }
+        best.applyTo(session);
+        session.rekey();
+        return best;
+    }
+
+    private static LinkProfile measure(Session session, String cipher, String mac, boolean compression,
+            byte[] sample) throws Exception {
+        new LinkProfile(cipher, mac, compression, 0, 0).applyTo(session);
+        session.rekey();
+        // The key exchange completes in the background, so wait for it before
+        // timing the transfer, and warm up the new cipher on the way
+        send(session, sample, WARMUP_SIZE);
+
+        final long elapsed = send(session, sample, sample.length);
+        final double throughput = Math.round(sample.length * 10000.0 / elapsed) / 10.0;
+        return new LinkProfile(cipher, mac, compression, throughput, System.currentTimeMillis());
+    }
+
+    /**
+     * Sends data to a remote command that discards it
+     * 
+     * @return the time it took, in nanoseconds
+     */
+    private static long send(Session session, byte[] data, int length) throws Exception {
+        final long start = System.nanoTime();
+        final ChannelExec channel = (ChannelExec) session.openChannel("exec");
+        channel.setCommand("cat > /dev/null");
+        try {
+            OutputStream out = channel.getOutputStream();
+            channel.connect(3000);
+            out.write(data, 0, length);
+            out.close();
+            while (!channel.isClosed()) {
+                if (!session.isConnected()) {
+                    throw new IOException("Connection to " + session.getHost() + " lost");
+                }
+                Thread.sleep(5);
+            }
+        } finally {
+            channel.disconnect();
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Creates probe data resembling a deployment, i.e. half compressed jars and
+     * half text
+     */
+    private static byte[] createSample() {
+        final byte[] sample = new byte[PROBE_SIZE];
+        new Random(0).nextBytes(sample);
+        final byte[] text = "riot.riotctl.internal.LinkProfile probe - text content\n"
+                .getBytes(StandardCharsets.US_ASCII);
+        for (int i = PROBE_SIZE / 2; i < PROBE_SIZE; i++) {
+            sample[i] = text[i % text.length];
+        }
+        return sample;
+    }
+
+    @Override
+    public String toString() {
+        return cipher + '/' + mac + (compression ? " with" : " without") + " compression, " + throughput + " MB/s";
+    }
+}
@@ -0,0 +1,76 @@
+package riot.riotctl.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * An OutputStream which splits whatever is written to it into lines, and passes
+ * each non-empty line on to a logging method. Used as a sink for the output of
+ * remote commands, which JSch pushes to us as soon as it arrives.
+ */
+class LogOutputStream extends OutputStream {
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+    private volatile Consumer<String> sink;
+
+    LogOutputStream(Consumer<String> sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Changes the logging method to which subsequent lines are passed
+     */
+    void setSink(Consumer<String> sink) {
+        this.sink = sink;
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        if (b == '\n') {
+            endLine();
+        } else {
+            line.write(b);
+        }
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        int start = off;
+        for (int i = off; i < off + len; i++) {
+            if (b[i] == '\n') {
+                line.write(b, start, i - start);
+                endLine();
+                start = i + 1;
+            }
+        }
+        line.write(b, start, off + len - start);
+    }
+
+    /**
+     * Passes on the last line, even if it isn't terminated yet. Note that JSch
+     * flushes after every packet, so this is not done in {@link #flush()}.
+     */
+    @Override
+    public synchronized void close() {
+        if (line.size() > 0) {
+            endLine();
+        }
+    }
+
+    private void endLine() {
+        final String s = new String(line.toByteArray(), StandardCharsets.UTF_8);
+        line.reset();
+        onLine(s);
+    }
+
+    /**
+     * Called for every complete line of output
+     */
+    protected void onLine(String s) {
+        s = s.trim();
+        if (!s.isEmpty()) {
+            sink.accept(s);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package riot.riotctl.internal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A list of the files in a directory, with their size and SHA-256 hash. A copy
+ * of it is kept on the device, so that subsequent deployments only need to
+ * transfer the files that have changed.
+ */
+public class Manifest {
+
+    public static class Entry {
+        public final String path;
+        public final long size;
+        public final String hash;
+
+        public Entry(String path, long size, String hash) {
+            this.path = path;
+            this.size = size;
+            this.hash = hash;
+        }
+
+        boolean sameContentAs(Entry other) {
+            return other != null && size == other.size && hash.equals(other.hash);
+        }
+    }
+
+    private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+
+    /**
+     * Builds the manifest of a local directory, hashing every file in it
+     *
+     * @param dir
+     *            the directory
+     * @throws IOException
+     *             if the directory or one of its files can't be read
+     */
+    public static Manifest of(File dir) throws IOException {
+        if (!dir.isDirectory()) {
+            throw new IOException(dir + " is not a directory");
+        }
+        Manifest manifest = new Manifest();
+        manifest.addDir(dir, "");
+        return manifest;
+    }
+
+    /**
+     * Parses a manifest, as produced by {@link #toString()}. An empty String
+     * results in an empty manifest.
+     */
+    public static Manifest parse(String s) {
+        Manifest manifest = new Manifest();
+        for (String line : s.split("\n")) {
+            String[] fields = line.split(" ", 3);
+            if (fields.length < 3) {
+                continue;
+            }
+            try {
+                manifest.add(new Entry(fields[2], Long.parseLong(fields[1]), fields[0]));
+            } catch (NumberFormatException e) {
+                // Ignore malformed lines, the file will just be copied again
+            }
+        }
+        return manifest;
+    }
+
+    public void add(Entry entry) {
+        entries.put(entry.path, entry);
+    }
+
+    public Entry get(String path) {
+        return entries.get(path);
+    }
+
+    public Collection<Entry> getEntries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * @return the total size of all files, in bytes
+     */
+    public long getSize() {
+        long size = 0;
+        for (Entry entry : entries.values()) {
+            size += entry.size;
+        }
+        return size;
+    }
+
+    /**
+     * @return the entries of this manifest which are new or different in the
+     *         previous one
+     */
+    public List<Entry> changedFrom(Manifest previous) {
+        List<Entry> changed = new ArrayList<Entry>();
+        for (Entry entry : entries.values()) {
+            if (!entry.sameContentAs(previous.get(entry.path))) {
+                changed.add(entry);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return the paths of the previous manifest which are no longer in this one
+     */
+    public List<String> removedFrom(Manifest previous) {
+        List<String> removed = new ArrayList<String>();
+        for (String path : previous.entries.keySet()) {
+            if (!entries.containsKey(path)) {
+                removed.add(path);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return one line per file, with hash, size and path separated by spaces
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Entry entry : entries.values()) {
+            sb.append(entry.hash).append(' ').append(entry.size).append(' ').append(entry.path).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private void addDir(File dir, String prefix) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Unable to list " + dir);
+        }
+        for (File file : files) {
+            final String path = prefix + file.getName();
+            if (file.isDirectory()) {
+                addDir(file, path + '/');
+            } else {
+                add(new Entry(path, file.length(), hash(file)));
+            }
+        }
+    }
+
+    /**
+     * Computes the SHA-256 hash of a file, as a hex string
+     */
+    public static String hash(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buf = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+            int len;
+            while ((len = in.read(buf)) >= 0) {
+                digest.update(buf, 0, len);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        return String.format("%0" + (bytes.length * 2) + "x", new BigInteger(1, bytes));
+    }
+}
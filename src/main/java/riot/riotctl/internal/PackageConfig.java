@@ -3,9 +3,18 @@ package riot.riotctl.internal;
 public class PackageConfig {
     public final String packageName, user;
     public final String binDir, envDir, runDir;
+    /**
+     * Whether each deployment goes into a release directory of its own, with a
+     * symlink to the current release
+     */
+    public final boolean versioned;
+    /** The directory from which the package runs */
+    public final String appDir;
     public final String startScript;
 
     public final String[] startParams;
+    /** The command with which systemd reloads the service, or null if it can't be reloaded */
+    private String reloadCommand;
 
     private static final char LF = '\n';
 
@@ -14,13 +23,19 @@ public class PackageConfig {
     }
 
     public PackageConfig(String packageName, String user, String... vmparams) {
+        this(packageName, user, false, vmparams);
+    }
+
+    public PackageConfig(String packageName, String user, boolean versioned, String... vmparams) {
         super();
         this.packageName = packageName;
         this.user = user;
         this.binDir = "/usr/local/" + packageName;
         this.envDir = "/etc/default/" + packageName;
         this.runDir = "/run/" + packageName;
-        this.startScript = binDir + "/bin/" + packageName;
+        this.versioned = versioned;
+        this.appDir = versioned ? getCurrentDir() : binDir;
+        this.startScript = appDir + "/bin/" + packageName;
         if (vmparams == null) {
             this.startParams = new String[]{};
         } else {
@@ -28,6 +43,17 @@ public class PackageConfig {
         }
     }
 
+    /**
+     * @param reloadCommand
+     *            the command with which the service reloads its code or
+     *            configuration, such as /bin/kill -HUP $MAINPID, or null if it
+     *            can only be restarted
+     */
+    public PackageConfig setReloadCommand(String reloadCommand) {
+        this.reloadCommand = reloadCommand;
+        return this;
+    }
+
     public String toSystemdFile() {
         StringBuilder sb = new StringBuilder();
         sb.append("[Unit]").append(LF);
@@ -36,12 +62,14 @@ public class PackageConfig {
         sb.append(LF);
         sb.append("[Service]").append(LF);
         sb.append("Type=simple").append(LF);
-        sb.append("WorkingDirectory=" + binDir).append(LF);
+        sb.append("WorkingDirectory=" + appDir).append(LF);
         for (int i = 0; i < startParams.length; i++) {
             sb.append("Environment=START_PARAMS=" + (i > 0 ? "${START_PARAMS} " : "") + startParams[i]).append(LF);
         }
         sb.append("ExecStart=" + startScript + " '${START_PARAMS}'").append(LF);
-        sb.append("ExecReload=/bin/kill -HUP $MAINPID").append(LF);
+        if (reloadCommand != null) {
+            sb.append("ExecReload=" + reloadCommand).append(LF);
+        }
         sb.append("Restart=always").append(LF);
         sb.append("RestartSec=60").append(LF);
         sb.append("SuccessExitStatus=143").append(LF); // VM responds to SIGTERM with RC 143
@@ -63,6 +91,28 @@ public class PackageConfig {
         return binDir + "/dependencies.lst";
     }
 
+    /**
+     * @return the manifest of the files currently deployed
+     */
+    public String getManifestFileName() {
+        return appDir + "/manifest.lst";
+    }
+
+    public String getReleasesDir() {
+        return binDir + "/releases";
+    }
+
+    public String getReleaseDir(String releaseId) {
+        return getReleasesDir() + '/' + releaseId;
+    }
+
+    /**
+     * @return the symlink to the current release
+     */
+    public String getCurrentDir() {
+        return binDir + "/current";
+    }
+
     public String getSystemdFileName() {
         return "/etc/systemd/system/" + packageName + ".service";
     }
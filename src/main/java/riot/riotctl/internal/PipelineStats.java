@@ -0,0 +1,94 @@
+package riot.riotctl.internal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long the stages of a deployment took, summed up over all hosts, and how
+ * full the queues between them were. A stage on which the others wait, or a
+ * queue which is always full, shows where the bottleneck is.
+ */
+public class PipelineStats {
+
+    private static class Stage {
+        int count;
+        long total, max;
+    }
+
+    private static class Queue {
+        int capacity;
+        long chunks, occupancy, producerWait, consumerWait;
+        int maxOccupancy;
+    }
+
+    private final Map<String, Stage> stages = new LinkedHashMap<String, Stage>();
+    private final Map<String, Queue> queues = new LinkedHashMap<String, Queue>();
+
+    /**
+     * Records one run of a stage
+     *
+     * @param nanos
+     *            the time it took, in nanoseconds
+     */
+    public synchronized void addTime(String stage, long nanos) {
+        final Stage s = stages.computeIfAbsent(stage, k -> new Stage());
+        s.count++;
+        s.total += nanos;
+        s.max = Math.max(s.max, nanos);
+    }
+
+    /**
+     * Records the use of a queue between two stages
+     *
+     * @param chunks
+     *            the number of chunks that went through it
+     * @param occupancy
+     *            the sum of the number of chunks in the queue, as seen by each
+     *            chunk when it was added
+     * @param producerWait
+     *            the time in nanoseconds for which the producer waited because
+     *            the queue was full
+     * @param consumerWait
+     *            the time in nanoseconds for which the consumer waited because
+     *            the queue was empty
+     */
+    synchronized void addQueue(String queue, int capacity, long chunks, long occupancy, int maxOccupancy,
+            long producerWait, long consumerWait) {
+        final Queue q = queues.computeIfAbsent(queue, k -> new Queue());
+        q.capacity = capacity;
+        q.chunks += chunks;
+        q.occupancy += occupancy;
+        q.maxOccupancy = Math.max(q.maxOccupancy, maxOccupancy);
+        q.producerWait += producerWait;
+        q.consumerWait += consumerWait;
+    }
+
+    /**
+     * @return the total time spent in a stage in milliseconds, or 0 if it didn't
+     *         run
+     */
+    public synchronized long getTime(String stage) {
+        final Stage s = stages.get(stage);
+        return s == null ? 0 : TimeUnit.NANOSECONDS.toMillis(s.total);
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder sb = new StringBuilder("Pipeline stages:");
+        for (Map.Entry<String, Stage> entry : stages.entrySet()) {
+            final Stage s = entry.getValue();
+            sb.append(String.format("%n - %s: %d x, %.2f s in total, %.2f s at most", entry.getKey(), s.count,
+                    s.total / 1e9, s.max / 1e9));
+        }
+        for (Map.Entry<String, Queue> entry : queues.entrySet()) {
+            final Queue q = entry.getValue();
+            sb.append(String.format("%n - queue %s: %d chunks, %.1f of %d full on average, %d at most,"
+                    + " producer blocked %.2f s, consumer idle %.2f s (%s-bound)", entry.getKey(), q.chunks,
+                    q.chunks == 0 ? 0.0 : (double) q.occupancy / q.chunks, q.capacity, q.maxOccupancy,
+                    q.producerWait / 1e9, q.consumerWait / 1e9,
+                    q.producerWait > q.consumerWait ? "consumer" : "producer"));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,145 @@
+package riot.riotctl.internal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+import riot.riotctl.Logger;
+
+/**
+ * A long-lived shell on the remote host, through which commands can be
+ * executed without opening a new channel for each of them. Every command is
+ * followed by a marker line on both its standard output and error, which
+ * carries its exit status and tells us when all of its output has arrived.
+ */
+class RemoteShell implements Closeable {
+    private static final long POLL_INTERVAL = 100;
+    /** How long the marker on standard error may lag behind the one on standard output */
+    private static final long MARKER_TIMEOUT = 10000;
+
+    private final Logger log;
+    private final Session session;
+    private final ChannelExec channel;
+    private final OutputStream stdIn;
+    private final String marker = "RIOT-" + UUID.randomUUID();
+    private final MarkerStream out, err;
+    private int commands = 0;
+
+    /**
+     * Splits output into lines like LogOutputStream, but doesn't log the marker
+     * lines and keeps track of how many of them have arrived.
+     */
+    private static class MarkerStream extends LogOutputStream {
+        private final String marker;
+        private int markers = 0;
+        private int status = -1;
+
+        MarkerStream(String marker, Consumer<String> sink) {
+            super(sink);
+            this.marker = marker;
+        }
+
+        @Override
+        protected void onLine(String s) {
+            if (s.startsWith(marker)) {
+                String rc = s.substring(marker.length()).trim();
+                status = rc.isEmpty() ? -1 : Integer.parseInt(rc);
+                markers++;
+                notifyAll();
+            } else {
+                super.onLine(s);
+            }
+        }
+
+        /**
+         * Waits until the given number of markers has arrived.
+         *
+         * @param timeout
+         *            how long to wait at most in milliseconds, or 0 to wait
+         *            until the shell is closed
+         * @return the exit status carried by the last marker
+         */
+        synchronized int await(int count, ChannelExec channel, long timeout) throws IOException {
+            final long deadline = System.currentTimeMillis() + timeout;
+            while (markers < count) {
+                if (channel.isClosed()) {
+                    throw new IOException("Remote shell closed unexpectedly");
+                }
+                if (timeout > 0 && System.currentTimeMillis() >= deadline) {
+                    throw new IOException("Remote shell didn't complete the command within " + timeout + " ms");
+                }
+                try {
+                    wait(POLL_INTERVAL);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(e.getMessage());
+                }
+            }
+            return status;
+        }
+    }
+
+    RemoteShell(Session session, ChannelExec channel, Logger log) throws IOException {
+        this.log = log;
+        this.session = session;
+        this.channel = channel;
+        this.out = new MarkerStream(marker, log::debug);
+        this.err = new MarkerStream(marker, log::info);
+
+        channel.setCommand("sh");
+        channel.setOutputStream(out, true);
+        channel.setErrStream(err, true);
+        try {
+            stdIn = channel.getOutputStream();
+            channel.connect(3000);
+        } catch (JSchException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return true if the shell can still accept commands
+     */
+    boolean isAlive() {
+        return session.isConnected() && channel.isConnected() && !channel.isClosed();
+    }
+
+    /**
+     * Executes a command in a shell of its own, and waits for it to complete.
+     * Its output is logged like that of
+     * {@link SSHClient#exec(String, boolean, boolean)}. How long the command
+     * may take is up to the caller, such as a fleet operation's host timeout.
+     *
+     * @return the exit status of the command
+     */
+    synchronized int exec(String command, boolean echo) throws IOException {
+        out.setSink(echo ? log::info : log::debug);
+        // Passed as a single argument, so that a syntax error such as an unbalanced
+        // quote fails the command rather than swallowing the markers, and an 'exit'
+        // or 'cd' doesn't affect the shell. The markers start on a new line in case
+        // the output doesn't end with one.
+        final String framed = "sh -c " + SSHClient.quote(command) + " </dev/null\n" //
+                + "printf '\\n%s %d\\n' " + marker + " $?\n" //
+                + "printf '\\n%s\\n' " + marker + " >&2\n";
+        stdIn.write(framed.getBytes(StandardCharsets.UTF_8));
+        stdIn.flush();
+        commands++;
+
+        final int rc = out.await(commands, channel, 0);
+        err.await(commands, channel, MARKER_TIMEOUT);
+        return rc;
+    }
+
+    @Override
+    public void close() {
+        channel.disconnect();
+    }
+}
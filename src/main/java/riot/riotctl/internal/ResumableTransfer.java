@@ -0,0 +1,208 @@
+package riot.riotctl.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import riot.riotctl.Logger;
+
+/**
+ * Uploads files one by one into partial files on the device, which are named
+ * by the hash of their content and appended to as the data arrives. If an
+ * upload is interrupted, the next one checks that the partial file still is a
+ * prefix of the local file, and only sends the rest of it. A file replaces the
+ * old version only once its checksum has been verified, and is then recorded
+ * in the deployment's {@link UploadJournal}.
+ */
+class ResumableTransfer implements FileTransfer {
+    static final String PARTIAL_DIR = ".riotctl-partial";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final SSHClient client;
+    private final Logger log;
+    private final Manifest manifest;
+    private final UploadJournal journal;
+
+    /** A partial file on the device, left behind by an interrupted upload */
+    private static class PartialFile {
+        final long size;
+        final String hash;
+
+        PartialFile(long size, String hash) {
+            this.size = size;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * @param manifest
+     *            the manifest of the local directory, whose hashes are used
+     *            instead of hashing the files again, or null
+     * @param journal
+     *            the journal in which to record the files that were copied, or
+     *            null
+     */
+    ResumableTransfer(SSHClient client, Logger log, Manifest manifest, UploadJournal journal) {
+        this.client = client;
+        this.log = log;
+        this.manifest = manifest;
+        this.journal = journal;
+    }
+
+    @Override
+    public void copyFiles(File lDir, Collection<String> paths, String rDir) throws IOException {
+        final String partDir = rDir + '/' + PARTIAL_DIR;
+        final Set<String> rDirs = new TreeSet<String>();
+        rDirs.add(SSHClient.quote(partDir));
+        // Files with the same content are uploaded once, and then linked
+        final Map<String, List<String>> files = new LinkedHashMap<String, List<String>>();
+        for (String path : paths) {
+            final File lFile = new File(lDir, path);
+            if (lFile.isDirectory()) {
+                rDirs.add(SSHClient.quote(rDir + '/' + path));
+                continue;
+            }
+            files.computeIfAbsent(hash(path, lFile), hash -> new ArrayList<String>()).add(path);
+            int pos = path.lastIndexOf('/');
+            if (pos > 0) {
+                rDirs.add(SSHClient.quote(rDir + '/' + path.substring(0, pos)));
+            }
+        }
+        client.exec("sudo mkdir -p " + String.join(" ", rDirs), true);
+
+        final Map<String, PartialFile> partial = listPartial(partDir, files.keySet());
+        for (Map.Entry<String, List<String>> file : files.entrySet()) {
+            final String hash = file.getKey();
+            final File lFile = new File(lDir, file.getValue().get(0));
+            final long offset = partial.containsKey(hash) ? verifiedOffset(lFile, partial.get(hash)) : 0;
+            if (offset > 0) {
+                log.info("Resuming upload of " + file.getValue().get(0) + " to " + client.getHost() + " at "
+                        + offset + " of " + lFile.length() + " bytes");
+            }
+            upload(lFile, offset, partDir + '/' + hash);
+            install(lFile, hash, partDir, rDir, file.getValue());
+        }
+
+        // Also removes partial files whose local file has changed since
+        client.exec("sudo rm -rf " + SSHClient.quote(partDir), true);
+    }
+
+    /**
+     * @return the hash of a file from the manifest, or computed if it isn't in
+     *         the manifest
+     */
+    private String hash(String path, File lFile) throws IOException {
+        final Manifest.Entry entry = manifest != null ? manifest.get(path) : null;
+        return entry != null ? entry.hash : Manifest.hash(lFile);
+    }
+
+    /**
+     * @return the partial files on the device for the given hashes
+     */
+    private Map<String, PartialFile> listPartial(String partDir, Collection<String> hashes) throws IOException {
+        final String command = "cd " + SSHClient.quote(partDir) + " 2>/dev/null && for h in "
+                + String.join(" ", hashes) + "; do [ -f \"$h\" ]" //
+                + " && echo \"$h $(wc -c < \"$h\") $(sha256sum < \"$h\")\"; done; true";
+        final Map<String, PartialFile> partial = new HashMap<String, PartialFile>();
+        for (String line : client.execBatch(Collections.singletonList(command)).get(0).stdout.split("\n")) {
+            final String[] fields = line.trim().split("\\s+");
+            if (fields.length >= 3) {
+                partial.put(fields[0], new PartialFile(Long.parseLong(fields[1]), fields[2]));
+            }
+        }
+        return partial;
+    }
+
+    /**
+     * @return the size of the partial file if its content matches the start of
+     *         the local file, otherwise 0
+     */
+    private long verifiedOffset(File lFile, PartialFile partial) throws IOException {
+        if (partial.size > lFile.length()) {
+            return 0;
+        }
+        final MessageDigest digest = Manifest.newDigest();
+        final ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+        try (FileChannel file = FileChannel.open(lFile.toPath(), StandardOpenOption.READ)) {
+            long remaining = partial.size;
+            while (remaining > 0) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), remaining));
+                int len = file.read(buf);
+                if (len < 0) {
+                    return 0;
+                }
+                digest.update(buf.array(), 0, len);
+                remaining -= len;
+            }
+        }
+        return Manifest.toHex(digest.digest()).equals(partial.hash) ? partial.size : 0;
+    }
+
+    /**
+     * Appends the local file from the given offset on to the partial file, which
+     * is truncated first if the offset is 0
+     */
+    private void upload(File lFile, long offset, String rPart) throws IOException {
+        final String command = "sudo sh -c " + SSHClient.quote("cat " + (offset > 0 ? ">> " : "> ")
+                + SSHClient.quote(rPart));
+        final int rc = client.execStream(command, out -> send(lFile, offset, out),
+                new LogOutputStream(log::debug));
+        if (rc != 0) {
+            throw new IOException("Uploading " + lFile.getName() + " to " + client.getHost()
+                    + " returned exit status " + rc);
+        }
+    }
+
+    private static void send(File lFile, long offset, OutputStream out) throws IOException {
+        // JSch's streams take byte arrays, so a direct buffer would only add a copy
+        final ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+        try (FileChannel file = FileChannel.open(lFile.toPath(), StandardOpenOption.READ)) {
+            file.position(offset);
+            int len;
+            while ((len = file.read(buf)) >= 0) {
+                out.write(buf.array(), 0, len);
+                buf.clear();
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Verifies the checksum of an uploaded file, and moves it into place
+     */
+    private void install(File lFile, String hash, String partDir, String rDir, List<String> paths)
+            throws IOException {
+        final StringBuilder script = new StringBuilder("cd ").append(SSHClient.quote(partDir)) //
+                .append(" && echo '").append(hash).append("  ").append(hash).append("' | sha256sum -c --status") //
+                .append(" && chmod 644 ").append(hash) //
+                .append(" && touch -d @").append(lFile.lastModified() / 1000).append(' ').append(hash);
+        for (String path : paths.subList(1, paths.size())) {
+            script.append(" && ln -f ").append(hash).append(' ').append(SSHClient.quote(rDir + '/' + path));
+        }
+        script.append(" && mv -f ").append(hash).append(' ').append(SSHClient.quote(rDir + '/' + paths.get(0)));
+        if (client.exec("sudo sh -c " + SSHClient.quote(script.toString()), false) != 0) {
+            client.exec("sudo rm -f " + SSHClient.quote(partDir + '/' + hash), false);
+            throw new IOException("Checksum of " + paths.get(0) + " on " + client.getHost()
+                    + " doesn't match, it will be uploaded again");
+        }
+        if (journal != null) {
+            for (String path : paths) {
+                journal.done(rDir + '/' + path, hash);
+            }
+        }
+    }
+}
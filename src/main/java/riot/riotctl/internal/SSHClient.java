@@ -1,21 +1,35 @@
 package riot.riotctl.internal;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
 
 import com.jcraft.jsch.ChannelExec;
-import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.ChannelSftp;
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Session;
 
 import riot.riotctl.Logger;
+import riot.riotctl.Target.TransferMethod;
 import riot.riotctl.discovery.HostInfo;
+import riot.riotctl.logger.StdOutLogger;
 
 /**
  * Holds an SSH connection to a host and allows files to be copied to it, and
@@ -24,36 +38,64 @@ import riot.riotctl.discovery.HostInfo;
 public class SSHClient implements Closeable {
     private static final String PTY_TYPE = "vanilla";
     private static final String LOCALE = "en_GB.UTF-8";
+    private static final long EXIT_POLL_INTERVAL = 5;
+    private static final long STDIN_POLL_INTERVAL = 100;
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+    public static final int DEFAULT_CONNECT_TIMEOUT = 30000;
+    public static final int DEFAULT_PORT = 22;
+    private static final String BATCH_HEADER = "RIOT-BATCH";
 
-    private static JSch jsch = new JSch();
-
-    private final Session session;
     private final Logger log;
+    private final String password;
+    private final int connectTimeout;
+    private Session session;
     private ProxyServer proxy;
+    private TransferMethod transferMethod = TransferMethod.SCP;
+    private TransferScheduler.Throttle throttle;
+    private PipelineStats stats;
+    private RemoteShell shell;
+    private boolean shellUnavailable = false;
 
     public SSHClient(HostInfo target, Logger log) throws IOException {
-        this(target.getHost().getHostName(), target.getUsername(), target.getPassword(), log);
+        this(target, log, DEFAULT_CONNECT_TIMEOUT);
+    }
+
+    public SSHClient(HostInfo target, Logger log, int connectTimeout) throws IOException {
+        this(target.getHost().getHostName(), target.getUsername(), target.getPassword(), log, connectTimeout);
+        if (target.getTarget() != null) {
+            this.transferMethod = target.getTarget().getTransferMethod();
+        }
     }
 
     public SSHClient(String hostname, String username, String password, Logger log) throws IOException {
+        this(hostname, username, password, log, DEFAULT_CONNECT_TIMEOUT);
+    }
+
+    /**
+     * @param connectTimeout
+     *            the time in milliseconds within which the session must be
+     *            established, including any retries
+     */
+    public SSHClient(String hostname, String username, String password, Logger log, int connectTimeout)
+            throws IOException {
+        this(hostname, DEFAULT_PORT, username, password, log, connectTimeout);
+    }
+
+    /**
+     * @param port
+     *            the port on which the host's SSH server listens
+     * @param connectTimeout
+     *            the time in milliseconds within which the session must be
+     *            established, including any retries
+     */
+    public SSHClient(String hostname, int port, String username, String password, Logger log, int connectTimeout)
+            throws IOException {
         this.log = log;
+        this.password = password;
+        this.connectTimeout = connectTimeout;
 
-        log.info("Opening session to " + hostname);
-        try {
-            session = jsch.getSession(username, hostname);
-            session.setConfig("StrictHostKeyChecking", "no");
-            session.setUserInfo(new SSHUserInfo(log, password));
-            try {
-                session.connect(2000);
-            } catch (JSchException e) {
-                // Workaround: After a long downtime, some PIs don't reply to the first SSH
-                // client. This seems to fix it reliable. Ping me if you have an idea why the
-                // first connection attempt sometimes fails...
-                session.connect();
-            }
-        } catch (JSchException e) {
-            throw new IOException(e.getMessage(), e);
-        }
+        log.info("Opening session to " + hostname + (port == DEFAULT_PORT ? "" : ":" + port));
+        this.session = SessionPool.getInstance().acquire(hostname, port, username, password, log, connectTimeout);
     }
 
     public void setProxy(ProxyServer proxy) throws IOException {
@@ -63,7 +105,8 @@ public class SSHClient implements Closeable {
             }
             this.proxy = proxy;
             proxy.registerClient(this);
-            session.setPortForwardingR(proxy.getPort(), "localhost", proxy.getPort());
+            // The session may be shared with other clients using the same proxy
+            SessionPool.getInstance().addRemoteForward(session, proxy.getPort());
         } catch (JSchException e) {
             throw new IOException(e.getMessage(), e);
         }
@@ -71,7 +114,7 @@ public class SSHClient implements Closeable {
 
     public void resetProxy() throws IOException {
         try {
-            session.delPortForwardingR(proxy.getPort());
+            SessionPool.getInstance().removeRemoteForward(session, proxy.getPort());
         } catch (JSchException e) {
             throw new IOException(e.getMessage(), e);
         }
@@ -83,13 +126,48 @@ public class SSHClient implements Closeable {
         return exec(command, false, checkRc);
     }
 
+    /**
+     * Executes a command and waits for it to complete. Commands are sent to a
+     * long-lived remote shell, or executed in a channel of their own if no shell
+     * could be opened.
+     * 
+     * @param echo
+     *            true to log the output of the command as info, rather than debug
+     * @param checkRc
+     *            true to throw an IOException if the command fails
+     * @return the exit status of the command
+     */
     public int exec(String command, boolean echo, boolean checkRc) throws IOException {
+        final RemoteShell shell = getShell();
+        int rc;
+        if (shell != null) {
+            try {
+                rc = shell.exec(command, echo);
+            } catch (IOException e) {
+                // The state of the shell is unknown, so don't use it any more
+                closeShell();
+                throw e;
+            }
+        } else {
+            rc = execChannel(command, echo);
+        }
+
+        if (checkRc && rc != 0) {
+            throw new IOException("Operation returned exit status " + rc);
+        }
+        return rc;
+    }
+
+    private int execChannel(String command, boolean echo) throws IOException {
         final ChannelExec channel = openExecChannel();
         channel.setCommand(command);
 
         InputStream in = channel.getInputStream();
-        InputStream err = channel.getExtInputStream();
-        int rc = Integer.MIN_VALUE;
+        LogOutputStream out = new LogOutputStream(echo ? log::info : log::debug);
+        // StdErr is often used for status messages, e.g. by systemctl
+        LogOutputStream err = new LogOutputStream(log::info);
+        channel.setErrStream(err, true);
+        int rc;
 
         try {
             channel.connect(3000);
@@ -97,67 +175,133 @@ public class SSHClient implements Closeable {
             throw new IOException(e.getMessage(), e);
         }
 
-        StringBuilder debug = new StringBuilder();
-        StringBuilder error = new StringBuilder();
-        byte[] tmp = new byte[1024];
-        while (true) {
-            while (in.available() > 0) {
-                int i = in.read(tmp, 0, 1024);
-                if (i < 0)
-                    break;
-                debug.append(new String(tmp, 0, i));
-            }
-            while (err.available() > 0) {
-                int i = err.read(tmp, 0, 1024);
-                if (i < 0)
-                    break;
-                error.append(new String(tmp, 0, i));
-            }
-            if (debug.length() > 0 && debug.charAt(debug.length() - 1) == '\n') {
-                if (echo)
-                    log.info(debug.toString().trim());
-                else
-                    log.debug(debug.toString().trim());
-                debug = new StringBuilder();
-            }
-            if (error.length() > 0 && error.charAt(error.length() - 1) == '\n') {
-                // StdErr is often used for status messages, e.g. by systemctl
-                log.info(error.toString().trim());
-            }
+        try {
+            rc = pump(channel, in, out);
+        } finally {
+            out.close();
+            err.close();
+            channel.disconnect();
+        }
+        return rc;
+    }
 
-            if (channel.isClosed()) {
-                if ((in.available() > 0) || (err.available() > 0))
-                    continue;
-                rc = channel.getExitStatus();
-                break;
-            }
+    /**
+     * Returns the remote shell, opening a new one if there is none or if it was
+     * closed.
+     * 
+     * @return the shell, or null if none can be opened on this host
+     */
+    private synchronized RemoteShell getShell() {
+        if (shell != null && !shell.isAlive()) {
+            log.debug("Remote shell on " + getHost() + " was closed, opening a new one");
+            closeShell();
+        }
+        if (shell == null && !shellUnavailable) {
             try {
-                Thread.sleep(1000);
-            } catch (Exception ee) {
+                final Session session = getSession();
+                shell = new RemoteShell(session, openExecChannel(), log);
+            } catch (IOException e) {
+                log.debug("Unable to open a remote shell on " + getHost() + ", using a channel per command: "
+                        + e.getMessage());
+                shellUnavailable = true;
             }
         }
+        return shell;
+    }
 
-        if (debug.length() > 0) {
-            log.debug(debug.toString().trim());
+    private synchronized void closeShell() {
+        if (shell != null) {
+            shell.close();
+            shell = null;
+        }
+    }
+
+    /**
+     * Executes several commands through a single channel, one after the other.
+     * Each command runs in its own subshell, so that a failing command doesn't
+     * affect the following ones. Its output is framed by a header with its exit
+     * status and the length of its standard output and error, and logged like
+     * that of {@link #exec(String, boolean)}.
+     * 
+     * @param commands
+     *            the commands to execute
+     * @return the result of each command, in the same order
+     * @throws IOException
+     *             if the batch couldn't be executed
+     */
+    public List<CommandResult> execBatch(List<String> commands) throws IOException {
+        if (commands.isEmpty()) {
+            return new ArrayList<CommandResult>();
         }
-        if (debug.length() > 0) {
-            log.error(error.toString().trim());
+
+        StringBuilder script = new StringBuilder();
+        script.append("d=$(mktemp -d) || exit 1\n");
+        script.append("trap 'rm -rf \"$d\"' EXIT\n");
+        script.append("run() {\n");
+        script.append("  ( eval \"$2\" ) </dev/null >\"$d/o\" 2>\"$d/e\"\n");
+        script.append("  printf '" + BATCH_HEADER + " %s %s %s %s\\n' \"$1\" $? $(wc -c <\"$d/o\") $(wc -c <\"$d/e\")\n");
+        script.append("  cat \"$d/o\" \"$d/e\"\n");
+        script.append("}\n");
+        for (int i = 0; i < commands.size(); i++) {
+            script.append("run ").append(i).append(' ').append(quote(commands.get(i))).append('\n');
         }
 
-        if (checkRc && rc != 0) {
-            throw new IOException("Operation returned exit status " + rc);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int rc = execStream(script.toString(), null, output);
+        final List<CommandResult> results = parseBatch(commands, output.toByteArray());
+        if (results.size() != commands.size()) {
+            throw new IOException("Batch of " + commands.size() + " commands ended after " + results.size()
+                    + " with exit status " + rc);
         }
 
-        channel.disconnect();
-        return rc;
+        for (CommandResult result : results) {
+            try (LogOutputStream out = new LogOutputStream(log::debug);
+                    LogOutputStream err = new LogOutputStream(log::info)) {
+                out.write(result.stdout.getBytes(StandardCharsets.UTF_8));
+                err.write(result.stderr.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return results;
+    }
+
+    private static List<CommandResult> parseBatch(List<String> commands, byte[] output) throws IOException {
+        final List<CommandResult> results = new ArrayList<CommandResult>(commands.size());
+        int pos = 0;
+        while (pos < output.length) {
+            int eol = pos;
+            while (eol < output.length && output[eol] != '\n') {
+                eol++;
+            }
+            final String[] header = new String(output, pos, eol - pos, StandardCharsets.US_ASCII).split(" ");
+            if (header.length != 5 || !header[0].equals(BATCH_HEADER)) {
+                throw new IOException("Unexpected output from batch: " + String.join(" ", header));
+            }
+            final int index = Integer.parseInt(header[1]);
+            final int rc = Integer.parseInt(header[2]);
+            final int outLength = Integer.parseInt(header[3]);
+            final int errLength = Integer.parseInt(header[4]);
+            pos = eol + 1;
+            if (pos + outLength + errLength > output.length) {
+                throw new IOException("Output from batch is truncated");
+            }
+
+            final String stdout = new String(output, pos, outLength, StandardCharsets.UTF_8);
+            pos += outLength;
+            final String stderr = new String(output, pos, errLength, StandardCharsets.UTF_8);
+            pos += errLength;
+            results.add(new CommandResult(commands.get(index), rc, stdout, stderr));
+        }
+        return results;
     }
 
     public int run(String command, InputStream stdIn) throws IOException {
         final ChannelExec channel = openExecChannel();
         channel.setCommand(command);
 
-        InputStream in = channel.getInputStream();
-        InputStream err = channel.getExtInputStream();
+        LogOutputStream in = new LogOutputStream(log::info);
+        LogOutputStream err = new LogOutputStream(log::error);
+        channel.setOutputStream(in, true);
+        channel.setErrStream(err, true);
         OutputStream out = channel.getOutputStream();
         int rc = Integer.MIN_VALUE;
         int enterCount = 0;
@@ -170,20 +314,10 @@ public class SSHClient implements Closeable {
 
         log.info("To stop, press <Enter> twice.");
 
+        // Remote output is logged as soon as it arrives, only the local input needs
+        // to be polled, since reading from it would block indefinitely.
         byte[] tmp = new byte[1024];
-        run: while (true) {
-            while (in.available() > 0) {
-                int i = in.read(tmp, 0, 1024);
-                if (i < 0)
-                    break;
-                log.info(new String(tmp, 0, i).trim());
-            }
-            while (err.available() > 0) {
-                int i = err.read(tmp, 0, 1024);
-                if (i < 0)
-                    break;
-                log.error(new String(tmp, 0, i));
-            }
+        run: while (!channel.isClosed()) {
             if (stdIn.available() > 0) {
                 int i = stdIn.read(tmp, 0, 1024);
                 if (i < 0)
@@ -198,41 +332,152 @@ public class SSHClient implements Closeable {
                     }
                 }
                 out.write(tmp, 0, i);
-            }
-            if (channel.isClosed()) {
-                if ((in.available() > 0) || (err.available() > 0))
-                    continue;
-                rc = channel.getExitStatus();
-                break;
-            }
-            try {
-                Thread.sleep(1000);
-            } catch (Exception ee) {
+                out.flush();
+            } else {
+                sleep(STDIN_POLL_INTERVAL);
             }
         }
+        if (channel.isClosed()) {
+            rc = channel.getExitStatus();
+        }
 
+        in.close();
+        err.close();
         channel.disconnect();
         return rc;
     }
 
+    /**
+     * Copies the output of a command to the given stream as it arrives, and blocks
+     * until the command has exited.
+     * 
+     * @return the command's exit status
+     */
+    private int pump(ChannelExec channel, InputStream in, OutputStream out) throws IOException {
+        byte[] buf = new byte[8192];
+        int len;
+        while ((len = in.read(buf, 0, buf.length)) >= 0) {
+            out.write(buf, 0, len);
+        }
+        // The output is complete, but the exit status may still be on its way:
+        while (!channel.isClosed()) {
+            if (!session.isConnected()) {
+                throw new IOException("Connection to " + getHost() + " lost");
+            }
+            sleep(EXIT_POLL_INTERVAL);
+        }
+        return channel.getExitStatus();
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        }
+    }
+
     public void mkDir(String rDir) throws IOException {
         exec("sudo mkdir -p " + rDir, true);
     }
 
+    /**
+     * Copies a directory and its contents, using this client's transfer method
+     * 
+     * @param lDir
+     *            the directory to copy
+     * @param rDir
+     *            the remote directory into which its contents should be copied
+     * @throws IOException
+     *             if copying fails
+     */
     public void copyDir(File lDir, String rDir) throws IOException {
-        mkDir(rDir);
-        for (File lFile : lDir.listFiles()) {
-            final String rFile = rDir + '/' + lFile.getName();
-            if (lFile.isDirectory()) {
-                copyDir(lFile, rFile);
-            } else {
-                copy(lFile, rFile);
-            }
+        copyDir(lDir, rDir, null, null);
+    }
+
+    /**
+     * Copies a directory and its contents, recording the files that were copied
+     * in a journal if the transfer method supports it. The manifest of the
+     * directory, if given, saves hashing its files again.
+     */
+    void copyDir(File lDir, String rDir, Manifest manifest, UploadJournal journal) throws IOException {
+        getFileTransfer(manifest, journal).copyFiles(lDir, listTree(lDir, "", new ArrayList<String>()), rDir);
+    }
+
+    /**
+     * Copies some of the files in a directory, using this client's transfer
+     * method
+     * 
+     * @param lDir
+     *            the local base directory
+     * @param paths
+     *            the files to copy, relative to the base directory and separated
+     *            by '/'
+     * @param rDir
+     *            the remote base directory
+     * @throws IOException
+     *             if copying fails
+     */
+    public void copyFiles(File lDir, Collection<String> paths, String rDir) throws IOException {
+        copyFiles(lDir, paths, rDir, null, null);
+    }
+
+    /**
+     * Copies some of the files in a directory, recording the files that were
+     * copied in a journal if the transfer method supports it. The manifest of
+     * the directory, if given, saves hashing its files again.
+     */
+    void copyFiles(File lDir, Collection<String> paths, String rDir, Manifest manifest, UploadJournal journal)
+            throws IOException {
+        if (paths.isEmpty()) {
+            return;
+        }
+        getFileTransfer(manifest, journal).copyFiles(lDir, paths, rDir);
+    }
+
+    private FileTransfer getFileTransfer(Manifest manifest, UploadJournal journal) {
+        switch (transferMethod) {
+        case RESUMABLE:
+            return new ResumableTransfer(this, log, manifest, journal);
+        case TAR:
+            return new TarTransfer(this, log, false);
+        case TAR_GZIP:
+            return new TarTransfer(this, log, true);
+        case SFTP:
+            return new SftpTransfer(this, log);
+        default:
+            return new ScpTransfer(this);
         }
     }
 
     /**
-     * Copies a single file via SCP
+     * Deletes files, if they exist
+     * 
+     * @param rDir
+     *            the remote base directory
+     * @param paths
+     *            the files to delete, relative to the base directory
+     * @throws IOException
+     *             if deleting fails
+     */
+    public void delete(String rDir, Collection<String> paths) throws IOException {
+        if (paths.isEmpty()) {
+            return;
+        }
+        StringBuilder command = new StringBuilder("sudo rm -f --");
+        for (String path : paths) {
+            command.append(' ').append(quote(rDir + '/' + path));
+        }
+        exec(command.toString(), true);
+    }
+
+    /**
+     * Copies a file by sending only the blocks in which it differs from the
+     * version already on the device, in the manner of rsync. The file is rebuilt
+     * on the device and replaces the old version once its checksum has been
+     * verified. Falls back to {@link #copy(File, String)} if there's no remote
+     * version, or the remote side of the transfer fails.
      * 
      * @param lFile
      *            the file to copy
@@ -241,40 +486,147 @@ public class SSHClient implements Closeable {
      * @throws IOException
      *             if copying fails
      */
-    public void copy(File lFile, String rFileName) throws IOException {
+    public void copyDelta(File lFile, String rFileName) throws IOException {
+        final DeltaTransfer delta = new DeltaTransfer(lFile);
+
+        ByteArrayOutputStream signatures = new ByteArrayOutputStream();
+        int rc = execStream(delta.getSignatureCommand(rFileName), null, signatures);
+        if (rc != 0) {
+            if (rc != DeltaTransfer.RC_NOT_FOUND) {
+                log.warn("Unable to read block signatures of " + rFileName + " on " + getHost()
+                        + ", copying whole file");
+            }
+            copy(lFile, rFileName);
+            return;
+        }
+        delta.setSignatures(new String(signatures.toByteArray(), "US-ASCII"));
+
+        LogOutputStream out = new LogOutputStream(log::debug);
+        rc = execStream(delta.getPatchCommand(rFileName), delta::writeInstructions, out);
+        out.close();
+        if (rc != 0) {
+            log.warn("Patching " + rFileName + " on " + getHost() + " failed, copying whole file");
+            copy(lFile, rFileName);
+            return;
+        }
+        log.debug("Sent " + delta.getLiteralBytes() + " of " + lFile.length() + " bytes of " + lFile.getName());
+    }
+
+    /**
+     * Data to be sent to the standard input of a remote command
+     */
+    interface Payload {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Executes a command, sending a payload to its standard input, and copying its
+     * standard output to the given stream. Its standard error is logged. Note that
+     * the output is only read after the payload has been sent completely.
+     * 
+     * @return the command's exit status
+     */
+    int execStream(String command, Payload payload, OutputStream stdOut) throws IOException {
         final ChannelExec channel = openExecChannel();
-        rFileName = rFileName.replace("'", "'\"'\"'");
-        channel.setCommand("sudo scp -p -t '" + rFileName + "'");
+        channel.setCommand(command);
 
-        OutputStream out = channel.getOutputStream();
         InputStream in = channel.getInputStream();
+        LogOutputStream err = new LogOutputStream(log::error);
+        channel.setErrStream(err, true);
+        OutputStream remote = channel.getOutputStream();
 
         try {
             channel.connect(3000);
-            if (receiveAck(in, false) != 0) {
-                return;
-            }
         } catch (JSchException e) {
             throw new IOException(e.getMessage(), e);
         }
 
-        sendTMessage(out, lFile.lastModified(), System.currentTimeMillis());
-        if (receiveAck(in, false) != 0) {
-            return;
+        try {
+            if (payload != null) {
+                payload.writeTo(throttle(remote, false));
+            }
+            remote.close();
+            return pump(channel, in, stdOut);
+        } finally {
+            err.close();
+            channel.disconnect();
         }
+    }
 
-        sendCMessage(out, "0644", rFileName, lFile.length());
-        if (receiveAck(in, false) != 0) {
-            return;
+    /**
+     * Lists a directory tree, parents before their contents
+     */
+    private static List<String> listTree(File lDir, String prefix, List<String> paths) {
+        for (File lFile : lDir.listFiles()) {
+            final String path = prefix + lFile.getName();
+            paths.add(path);
+            if (lFile.isDirectory()) {
+                listTree(lFile, path + '/', paths);
+            }
         }
+        return paths;
+    }
 
-        sendFileContents(out, lFile);
-        if (receiveAck(in, false) != 0) {
-            return;
+    /**
+     * Copies a single file via SCP
+     * 
+     * @param lFile
+     *            the file to copy
+     * @param rFileName
+     *            the file name and directory to which to copy the file
+     * @throws IOException
+     *             if copying fails
+     */
+    public void copy(File lFile, String rFileName) throws IOException {
+        copy(lFile, rFileName, true);
+    }
+
+    /**
+     * Copies a single file via SCP
+     *
+     * @param preserveTime
+     *            whether the remote file gets the local file's modification
+     *            time, rather than the time it was written
+     */
+    void copy(File lFile, String rFileName, boolean preserveTime) throws IOException {
+        final ChannelExec channel = openExecChannel();
+        channel.setCommand(getScpSinkCommand(rFileName, preserveTime));
+
+        OutputStream out = throttle(channel.getOutputStream(), false);
+        InputStream in = channel.getInputStream();
+
+        try {
+            channel.connect(3000);
+            checkAck(in, rFileName);
+
+            if (preserveTime) {
+                sendTMessage(out, lFile.lastModified(), System.currentTimeMillis());
+                checkAck(in, rFileName);
+            }
+
+            final long size = lFile.length();
+            sendCMessage(out, "0644", rFileName, size);
+            checkAck(in, rFileName);
+
+            sendFileContents(out, lFile, size);
+            checkAck(in, rFileName);
+            out.close();
+        } catch (JSchException e) {
+            throw new IOException(e.getMessage(), e);
+        } finally {
+            channel.disconnect();
         }
+    }
 
-        out.close();
-        channel.disconnect();
+    /**
+     * @return the command which receives a file via SCP. An existing file is
+     *         removed first, as SCP would write into it, and thus into all
+     *         hardlinks to it, such as those of a previous release.
+     */
+    private static String getScpSinkCommand(String rFileName, boolean preserveTime) {
+        final String script = "rm -f " + quote(rFileName) + " && exec scp " + (preserveTime ? "-p " : "") + "-t "
+                + quote(rFileName);
+        return "sudo sh -c " + quote(script);
     }
 
     /**
@@ -288,42 +640,36 @@ public class SSHClient implements Closeable {
      */
     public void write(String payload, String rFile) throws IOException {
         final ChannelExec channel = openExecChannel();
-        rFile = rFile.replace("'", "'\"'\"'");
-        channel.setCommand("sudo scp -p -t '" + rFile + "'");
-        OutputStream out = channel.getOutputStream();
+        channel.setCommand(getScpSinkCommand(rFile, true));
+        // Control files such as units and lists are small, and shouldn't wait
+        // behind bulk uploads to the host
+        OutputStream out = throttle(channel.getOutputStream(), true);
         InputStream in = channel.getInputStream();
 
         try {
             channel.connect(3000);
-            if (receiveAck(in, false) != 0) {
-                return;
-            }
-        } catch (JSchException e) {
-            throw new IOException(e.getMessage(), e);
-        }
+            checkAck(in, rFile);
 
-        sendTMessage(out, System.currentTimeMillis(), System.currentTimeMillis());
-        if (receiveAck(in, false) != 0) {
-            return;
-        }
+            sendTMessage(out, System.currentTimeMillis(), System.currentTimeMillis());
+            checkAck(in, rFile);
 
-        sendCMessage(out, "0644", rFile.substring(rFile.lastIndexOf('/') + 1), payload.length());
-        if (receiveAck(in, false) != 0) {
-            return;
-        }
+            final byte[] bytes = payload.getBytes("UTF-8");
+            sendCMessage(out, "0644", rFile.substring(rFile.lastIndexOf('/') + 1), bytes.length);
+            checkAck(in, rFile);
 
-        // send the content of payload as bytes
-        out.write(payload.getBytes("UTF-8"));
+            // send the content of payload as bytes
+            out.write(bytes);
 
-        // send '\0'
-        out.write(0);
-        out.flush();
-        if (receiveAck(in, false) != 0) {
-            return;
+            // send '\0'
+            out.write(0);
+            out.flush();
+            checkAck(in, rFile);
+            out.close();
+        } catch (JSchException e) {
+            throw new IOException(e.getMessage(), e);
+        } finally {
+            channel.disconnect();
         }
-
-        out.close();
-        channel.disconnect();
     }
 
     /**
@@ -342,13 +688,83 @@ public class SSHClient implements Closeable {
      *         file exists
      */
     public String read(String rFile, boolean suppressStdErr) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        if (!read(rFile, baos, suppressStdErr)) {
+            return "";
+        }
+        return new String(baos.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a file via SCP, copying its contents to a stream
+     * 
+     * @param rFile
+     *            the file name
+     * @param target
+     *            the stream to which to copy the contents. It is not closed.
+     * @param suppressStdErr
+     *            whether errors should be redirected to the debug log instead of
+     *            the error log
+     * @return true if the file was read, false if no such file exists
+     * @throws IOException
+     *             if connection failed or reading the file aborted
+     */
+    public boolean read(String rFile, OutputStream target, boolean suppressStdErr) throws IOException {
+        final byte[] buf = new byte[TRANSFER_BUFFER_SIZE];
+        return read(rFile, suppressStdErr, (in, size) -> {
+            long remaining = size;
+            while (remaining > 0) {
+                int len = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+                if (len < 0) {
+                    throw new IOException("Transfer of " + rFile + " was interrupted");
+                }
+                target.write(buf, 0, len);
+                remaining -= len;
+            }
+        });
+    }
+
+    /**
+     * Reads a file via SCP, and stores it as a local file
+     * 
+     * @param rFile
+     *            the file name
+     * @param lFile
+     *            the local file to create or overwrite. It is left untouched if
+     *            the remote file doesn't exist.
+     * @return true if the file was read, false if no such file exists
+     * @throws IOException
+     *             if connection failed or reading the file aborted
+     */
+    public boolean read(String rFile, Path lFile) throws IOException {
+        return read(rFile, false, (in, size) -> {
+            try (FileChannel file = FileChannel.open(lFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ReadableByteChannel source = Channels.newChannel(in);
+                long position = 0;
+                while (position < size) {
+                    long len = file.transferFrom(source, position, size - position);
+                    if (len <= 0) {
+                        throw new IOException("Transfer of " + rFile + " was interrupted");
+                    }
+                    position += len;
+                }
+            }
+        });
+    }
+
+    /**
+     * Receives the content of a file, which is read from an SCP stream
+     */
+    private interface ContentSink {
+        void receive(InputStream in, long size) throws IOException;
+    }
+
+    private boolean read(String rFile, boolean suppressStdErr, ContentSink sink) throws IOException {
         final ChannelExec channel = openExecChannel();
-        rFile = rFile.replace("'", "'\"'\"'");
-        rFile = "'" + rFile + "'";
-        channel.setCommand("scp -f " + rFile);
+        channel.setCommand("scp -f " + quote(rFile));
         OutputStream out = channel.getOutputStream();
-        InputStream in = channel.getInputStream();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        InputStream in = new BufferedInputStream(channel.getInputStream(), TRANSFER_BUFFER_SIZE);
 
         try {
             channel.connect(3000);
@@ -356,72 +772,59 @@ public class SSHClient implements Closeable {
             throw new IOException(e.getMessage(), e);
         }
 
-        byte[] buf = new byte[1024];
-
-        out.write(0);
-        out.flush();
+        try {
+            out.write(0);
+            out.flush();
 
-        while (true) {
             int c = receiveAck(in, suppressStdErr);
             if (c != 'C') {
-                break;
-            }
-
-            // read file mask, e.g. '0644 '
-            in.read(buf, 0, 5);
-
-            long filesize = 0L; // unused
-            while (true) {
-                if (in.read(buf, 0, 1) < 0) {
-                    // error
-                    break;
-                }
-                if (buf[0] == ' ')
-                    break;
-                filesize = filesize * 10L + (long) (buf[0] - '0');
+                return false;
             }
 
-            String filename = null; // unused
-            for (int i = 0;; i++) {
-                in.read(buf, i, 1);
-                if (buf[i] == (byte) 0x0a) {
-                    filename = new String(buf, 0, i);
-                    break;
-                }
+            // The rest of the header: file mask, size and name, e.g. '0644 123 name'
+            String[] header = readLine(in).split(" ", 3);
+            if (header.length < 3) {
+                throw new IOException("Unexpected SCP header: " + String.join(" ", header));
             }
+            final long size = Long.parseLong(header[1]);
 
             out.write(0);
             out.flush();
 
-            int foo;
-            while (true) {
-                if (buf.length < filesize)
-                    foo = buf.length;
-                else
-                    foo = (int) filesize;
-                foo = in.read(buf, 0, foo);
-                if (foo < 0) {
-                    // error
-                    break;
-                }
-                baos.write(buf, 0, foo);
-                filesize -= foo;
-                if (filesize == 0L)
-                    break;
-            }
-            baos.close();
+            sink.receive(in, size);
 
             if (receiveAck(in, false) != 0) {
-                return "";
+                throw new IOException("Reading " + rFile + " failed");
             }
-
             out.write(0);
             out.flush();
+            return true;
+        } finally {
+            channel.disconnect();
         }
+    }
 
-        channel.disconnect();
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new IOException("Connection closed while reading SCP header");
+            }
+            line.write(b);
+        }
+        return new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
 
-        return new String(baos.toByteArray(), "UTF-8");
+    /**
+     * @return the session to the host, which is re-established if it was lost
+     */
+    private synchronized Session getSession() throws IOException {
+        if (!session.isConnected()) {
+            log.warn("Connection to " + session.getHost() + " was lost, reconnecting");
+            session = SessionPool.getInstance().reconnect(session, password, log, connectTimeout);
+        }
+        return session;
     }
 
     /**
@@ -432,7 +835,7 @@ public class SSHClient implements Closeable {
      */
     private ChannelExec openExecChannel() throws IOException {
         try {
-            ChannelExec channel = (ChannelExec) session.openChannel("exec");
+            ChannelExec channel = (ChannelExec) getSession().openChannel("exec");
             channel.setPtyType(PTY_TYPE);
             channel.setEnv("LC_ALL", LOCALE);
             channel.setInputStream(null);
@@ -442,6 +845,29 @@ public class SSHClient implements Closeable {
         }
     }
 
+    /**
+     * Opens an SFTP channel
+     * 
+     * @throws IOException
+     *             if the Channel couldn't be opened
+     */
+    ChannelSftp openSftpChannel() throws IOException {
+        try {
+            ChannelSftp channel = (ChannelSftp) getSession().openChannel("sftp");
+            channel.connect(3000);
+            return channel;
+        } catch (JSchException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Quotes a string for use as a single argument in a remote shell command
+     */
+    public static String quote(String s) {
+        return "'" + s.replace("'", "'\"'\"'") + "'";
+    }
+
     /**
      * Sends an SCP 'T' message with the file modification and access time
      */
@@ -472,22 +898,28 @@ public class SSHClient implements Closeable {
 
     /**
      * Sends the actual file contents
+     * 
+     * @param size
+     *            the file size that was announced in the C message
      */
-    private void sendFileContents(OutputStream out, File lFile) throws FileNotFoundException, IOException {
-        FileInputStream fis;
-        fis = new FileInputStream(lFile);
-        byte[] buf = new byte[1024];
-        while (true) {
-            int len = fis.read(buf, 0, buf.length);
-            if (len <= 0)
-                break;
-            out.write(buf, 0, len); // out.flush();
-        }
-        fis.close();
-        fis = null;
+    private void sendFileContents(OutputStream out, File lFile, long size) throws IOException {
+        // JSch's streams take byte arrays, so a direct buffer would only add a copy
+        final ByteBuffer buf = ByteBuffer.allocate(TRANSFER_BUFFER_SIZE);
+        try (FileChannel file = FileChannel.open(lFile.toPath(), StandardOpenOption.READ)) {
+            long remaining = size;
+            while (remaining > 0) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), remaining));
+                int len = file.read(buf);
+                if (len < 0) {
+                    throw new IOException(lFile + " was truncated while being sent");
+                }
+                out.write(buf.array(), 0, len);
+                remaining -= len;
+            }
+        }
         // send '\0'
-        buf[0] = 0;
-        out.write(buf, 0, 1);
+        out.write(0);
         out.flush();
     }
 
@@ -495,6 +927,21 @@ public class SSHClient implements Closeable {
      * Check for SCP Acknowledge return code; 0 for success, 1 for error, 2 for
      * fatal error.
      */
+    /**
+     * Reads the acknowledgement of an SCP message sent to the host
+     *
+     * @throws IOException
+     *             with the host's message, if it reports an error
+     */
+    private void checkAck(InputStream in, String rFile) throws IOException {
+        final int b = in.read();
+        if (b == 0) {
+            return;
+        }
+        final String message = b == 1 || b == 2 ? readLine(in) : "connection closed";
+        throw new IOException("Copying to " + rFile + " on " + getHost() + " failed: " + message);
+    }
+
     private int receiveAck(InputStream in, boolean suppressErrors) throws IOException {
         int b = in.read();
         if (b == 0)
@@ -520,17 +967,123 @@ public class SSHClient implements Closeable {
         return b;
     }
 
+    public TransferMethod getTransferMethod() {
+        return transferMethod;
+    }
+
+    public void setTransferMethod(TransferMethod transferMethod) {
+        this.transferMethod = transferMethod;
+    }
+
+    /**
+     * Makes uploads to the host share the bandwidth of a
+     * {@link TransferScheduler}
+     */
+    public void setThrottle(TransferScheduler.Throttle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * Sets where the stages of transfers record how long they took, and how
+     * full the queues between them were
+     */
+    public void setStats(PipelineStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * @return where to record the timing of transfers, or null
+     */
+    PipelineStats getStats() {
+        return stats;
+    }
+
+    /**
+     * @return a stream which sends data to the given one at the rate this
+     *         client's throttle allows
+     */
+    OutputStream throttle(OutputStream out, boolean priority) {
+        return throttle == null ? out : throttle.wrap(out, priority);
+    }
+
     public String getHost() {
         return session.getHost();
     }
 
+    public int getPort() {
+        return session.getPort();
+    }
+
     public String getUsername() {
         return session.getUserName();
     }
 
+    /**
+     * Releases the session, which is kept open for a while in case another client
+     * connects to the same host.
+     */
     @Override
     public void close() throws IOException {
-        session.disconnect();
+        closeShell();
+        if (proxy != null) {
+            resetProxy();
+        }
+        SessionPool.getInstance().release(session);
+    }
+
+    /**
+     * Measures the round-trip latency of remote commands, and the throughput of
+     * file transfers in both directions. Usage: SSHClient &lt;host&gt;
+     * &lt;user&gt; &lt;password&gt; [count] [megabytes]
+     */
+    public static void main(String[] args) throws IOException {
+        StdOutLogger log = new StdOutLogger(false);
+        int count = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+        int megabytes = args.length > 4 ? Integer.parseInt(args[4]) : 64;
+
+        try (SSHClient client = new SSHClient(args[0], args[1], args[2], log)) {
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                client.exec("true", true);
+            }
+            long elapsed = System.nanoTime() - start;
+            log.info("Executed " + count + " commands, " + (elapsed / count / 1000) / 1000.0 + " ms per command");
+
+            final File upload = File.createTempFile("riotctl-benchmark", ".bin");
+            final File download = File.createTempFile("riotctl-benchmark", ".bin");
+            final String rFile = "/tmp/riotctl-benchmark.bin";
+            try {
+                final Random random = new Random();
+                final byte[] block = new byte[1024 * 1024];
+                try (OutputStream out = new FileOutputStream(upload)) {
+                    for (int i = 0; i < megabytes; i++) {
+                        random.nextBytes(block);
+                        out.write(block);
+                    }
+                }
+
+                start = System.nanoTime();
+                client.copy(upload, rFile);
+                elapsed = System.nanoTime() - start;
+                log.info("Uploaded " + megabytes + " MB, " + throughput(megabytes, elapsed) + " MB/s");
+
+                start = System.nanoTime();
+                client.read(rFile, download.toPath());
+                elapsed = System.nanoTime() - start;
+                log.info("Downloaded " + megabytes + " MB, " + throughput(megabytes, elapsed) + " MB/s");
+
+                if (!Manifest.hash(upload).equals(Manifest.hash(download))) {
+                    log.error("Downloaded file differs from uploaded file");
+                }
+                client.exec("sudo rm -f " + rFile, false);
+            } finally {
+                upload.delete();
+                download.delete();
+            }
+        }
     }
 
+    private static double throughput(int megabytes, long nanos) {
+        return Math.round(megabytes * 10000000000.0 / nanos) / 10.0;
+    }
 }
@@ -0,0 +1,53 @@
+package riot.riotctl.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Copies files one by one via SCP, after creating all the directories they
+ * need and removing the old versions in one go.
+ */
+class ScpTransfer implements FileTransfer {
+    private final SSHClient client;
+
+    ScpTransfer(SSHClient client) {
+        this.client = client;
+    }
+
+    @Override
+    public void copyFiles(File lDir, Collection<String> paths, String rDir) throws IOException {
+        final Set<String> rDirs = new TreeSet<String>();
+        final List<String> files = new ArrayList<String>(paths.size());
+        rDirs.add(SSHClient.quote(rDir));
+        for (String path : paths) {
+            if (new File(lDir, path).isDirectory()) {
+                rDirs.add(SSHClient.quote(rDir + '/' + path));
+                continue;
+            }
+            files.add(path);
+            int pos = path.lastIndexOf('/');
+            if (pos > 0) {
+                rDirs.add(SSHClient.quote(rDir + '/' + path.substring(0, pos)));
+            }
+        }
+
+        // SCP writes into existing files, which would also change any other links
+        // to them, e.g. in the shared store. So remove them first.
+        final StringBuilder command = new StringBuilder("sudo mkdir -p ").append(String.join(" ", rDirs));
+        if (!files.isEmpty()) {
+            command.append(" && sudo rm -f --");
+            for (String path : files) {
+                command.append(' ').append(SSHClient.quote(rDir + '/' + path));
+            }
+        }
+        client.exec(command.toString(), true);
+        for (String path : files) {
+            client.copy(new File(lDir, path), rDir + '/' + path);
+        }
+    }
+}
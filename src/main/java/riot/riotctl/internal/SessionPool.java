@@ -0,0 +1,306 @@
+package riot.riotctl.internal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+import riot.riotctl.Logger;
+
+/**
+ * Keeps SSH sessions open beyond the lifetime of a single RiotCtlTool, so that
+ * subsequent goals of a build don't need to connect and authenticate again.
+ * Sessions are shared by all clients for the same host and user, kept alive
+ * with keepalive messages, checked before being reused, and closed once they
+ * have been idle for a while. Port forwards on a shared session are counted,
+ * so that a client doesn't remove one which another still uses.
+ */
+final class SessionPool {
+    private static final int KEEPALIVE_INTERVAL = 15000;
+    private static final int KEEPALIVE_MAX_COUNT = 3;
+    private static final long IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+    private static final int FIRST_CONNECT_TIMEOUT = 2000;
+    private static final long INITIAL_BACKOFF = 500;
+    /** How long an idle session may take to answer before it is considered lost */
+    private static final int HEALTH_CHECK_TIMEOUT = 3000;
+
+    private static final SessionPool INSTANCE = new SessionPool();
+
+    private static class PooledSession {
+        final Session session;
+        final String password;
+        int leases;
+        long lastUsed;
+
+        PooledSession(Session session, String password) {
+            this.session = session;
+            this.password = password;
+        }
+    }
+
+    private final JSch jsch = new JSch();
+    private final Map<String, PooledSession> sessions = new HashMap<String, PooledSession>();
+    /** For each session, how many clients use each of its remote port forwards */
+    private final Map<Session, Map<Integer, Integer>> remoteForwards = new HashMap<Session, Map<Integer, Integer>>();
+
+    private SessionPool() {
+        ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "riotctl-session-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictor.scheduleWithFixedDelay(this::evictIdle, 1, 1, TimeUnit.MINUTES);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::closeAll, "riotctl-session-shutdown"));
+    }
+
+    static SessionPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns a connected session to the given host, reusing an idle one if it
+     * is still healthy. Every session acquired must be released again.
+     *
+     * @param connectTimeout
+     *            the time in milliseconds within which a new session must be
+     *            established, including any retries
+     * @throws IOException
+     *             if no session could be established
+     */
+    Session acquire(String hostname, int port, String username, String password, Logger log, int connectTimeout)
+            throws IOException {
+        final String key = key(hostname, port, username);
+        final PooledSession existing;
+        synchronized (this) {
+            existing = sessions.get(key);
+        }
+        if (existing != null) {
+            // Checked outside the lock, since it takes a round trip to the host
+            final boolean reusable = Objects.equals(existing.password, password) && isHealthy(existing.session);
+            synchronized (this) {
+                if (sessions.get(key) == existing) {
+                    if (reusable) {
+                        existing.leases++;
+                        log.debug("Reusing session to " + hostname);
+                        return existing.session;
+                    }
+                    if (existing.leases == 0) {
+                        remove(key);
+                    }
+                }
+            }
+        }
+
+        final Session session = connect(hostname, port, username, password, log, connectTimeout);
+        synchronized (this) {
+            PooledSession pooled = sessions.get(key);
+            if (pooled != null && Objects.equals(pooled.password, password) && pooled.session.isConnected()) {
+                // Another client connected at the same time, share its session instead
+                session.disconnect();
+                pooled.leases++;
+                return pooled.session;
+            }
+            pooled = new PooledSession(session, password);
+            pooled.leases = 1;
+            sessions.put(key, pooled);
+            return session;
+        }
+    }
+
+    /**
+     * Gives a session back to the pool. It remains open until it has been idle
+     * for a while.
+     */
+    synchronized void release(Session session) {
+        for (PooledSession pooled : sessions.values()) {
+            if (pooled.session == session) {
+                pooled.leases = Math.max(0, pooled.leases - 1);
+                pooled.lastUsed = System.currentTimeMillis();
+                return;
+            }
+        }
+        // No longer pooled, since it was replaced by a new connection
+        session.disconnect();
+        remoteForwards.remove(session);
+    }
+
+    /**
+     * Replaces a session which was lost with a new one
+     */
+    Session reconnect(Session lost, String password, Logger log, int connectTimeout) throws IOException {
+        release(lost);
+        return acquire(lost.getHost(), lost.getPort(), lost.getUserName(), password, log, connectTimeout);
+    }
+
+    /**
+     * Forwards a port on the host to the same port on this machine, unless
+     * another client of the session already did
+     */
+    void addRemoteForward(Session session, int port) throws JSchException {
+        final Map<Integer, Integer> counts;
+        synchronized (this) {
+            counts = remoteForwards.computeIfAbsent(session, s -> new HashMap<Integer, Integer>());
+        }
+        synchronized (counts) {
+            if (!counts.containsKey(port)) {
+                session.setPortForwardingR(port, "localhost", port);
+            }
+            counts.merge(port, 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Removes a port forward once no client of the session uses it any more
+     */
+    void removeRemoteForward(Session session, int port) throws JSchException {
+        final Map<Integer, Integer> counts;
+        synchronized (this) {
+            counts = remoteForwards.get(session);
+        }
+        if (counts == null) {
+            return;
+        }
+        synchronized (counts) {
+            final Integer count = counts.get(port);
+            if (count == null) {
+                return;
+            }
+            if (count > 1) {
+                counts.put(port, count - 1);
+            } else {
+                counts.remove(port);
+                session.delPortForwardingR(port);
+            }
+        }
+    }
+
+    private void remove(String key) {
+        final PooledSession pooled = sessions.remove(key);
+        pooled.session.disconnect();
+        remoteForwards.remove(pooled.session);
+    }
+
+    private static String key(String hostname, int port, String username) {
+        return username + '@' + hostname + (port == SSHClient.DEFAULT_PORT ? "" : ":" + port);
+    }
+
+    private Session connect(String hostname, int port, String username, String password, Logger log,
+            int connectTimeout) throws IOException {
+        final long deadline = System.currentTimeMillis() + connectTimeout;
+        final String key = key(hostname, port, username);
+        final LinkProfile profile = LinkProfile.load(key);
+        long backoff = INITIAL_BACKOFF;
+        for (int attempt = 1;; attempt++) {
+            final Session session;
+            try {
+                session = jsch.getSession(username, hostname, port);
+                session.setConfig("StrictHostKeyChecking", "no");
+                session.setUserInfo(new SSHUserInfo(log, password));
+                session.setServerAliveInterval(KEEPALIVE_INTERVAL);
+                session.setServerAliveCountMax(KEEPALIVE_MAX_COUNT);
+                session.setDaemonThread(true);
+                if (profile != null) {
+                    profile.applyTo(session);
+                }
+            } catch (JSchException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+
+            // After a long downtime, some PIs don't reply to the first SSH client, so
+            // the first attempt is kept short.
+            long remaining = deadline - System.currentTimeMillis();
+            int timeout = (int) (attempt == 1 ? Math.min(FIRST_CONNECT_TIMEOUT, remaining) : remaining);
+            try {
+                session.connect(Math.max(1, timeout));
+                if (profile == null) {
+                    probe(key, session, log);
+                }
+                return session;
+            } catch (JSchException e) {
+                remaining = deadline - System.currentTimeMillis();
+                if ("Auth fail".equals(e.getMessage()) || remaining <= backoff) {
+                    throw new IOException(e.getMessage(), e);
+                }
+                log.debug("Connecting to " + hostname + " failed (" + e.getMessage() + "), retrying in " + backoff
+                        + " ms");
+            }
+
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(e.getMessage());
+            }
+            backoff *= 2;
+        }
+    }
+
+    /**
+     * Measures which SSH settings give the best transfer rate to a host, and
+     * records them for later sessions. Failing that, the session is used with the
+     * default settings.
+     */
+    private static void probe(String key, Session session, Logger log) {
+        try {
+            LinkProfile profile = LinkProfile.probe(session, log);
+            log.info("Using " + profile + " to " + session.getHost());
+            LinkProfile.save(key, profile);
+        } catch (Exception e) {
+            log.warn("Unable to measure the transfer rate to " + session.getHost() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Checks that the host still answers, by opening a channel. A keepalive
+     * message would only be queued, so a connection which was lost without
+     * being closed would still seem healthy.
+     */
+    private static boolean isHealthy(Session session) {
+        if (!session.isConnected()) {
+            return false;
+        }
+        ChannelExec channel = null;
+        try {
+            channel = (ChannelExec) session.openChannel("exec");
+            channel.setCommand("true");
+            channel.connect(HEALTH_CHECK_TIMEOUT);
+            return true;
+        } catch (JSchException e) {
+            return false;
+        } finally {
+            if (channel != null) {
+                channel.disconnect();
+            }
+        }
+    }
+
+    private synchronized void evictIdle() {
+        final long now = System.currentTimeMillis();
+        for (Iterator<PooledSession> iterator = sessions.values().iterator(); iterator.hasNext();) {
+            PooledSession pooled = iterator.next();
+            if (pooled.leases == 0 && (now - pooled.lastUsed > IDLE_TIMEOUT || !pooled.session.isConnected())) {
+                pooled.session.disconnect();
+                remoteForwards.remove(pooled.session);
+                iterator.remove();
+            }
+        }
+    }
+
+    private synchronized void closeAll() {
+        for (PooledSession pooled : sessions.values()) {
+            pooled.session.disconnect();
+        }
+        sessions.clear();
+        remoteForwards.clear();
+    }
+}
@@ -0,0 +1,104 @@
+package riot.riotctl.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.SftpException;
+
+import riot.riotctl.Logger;
+
+/**
+ * Uploads files through a single SFTP channel, which keeps many write requests
+ * outstanding instead of waiting for an acknowledgement after each one. As the
+ * SFTP server runs as the user, files are uploaded to a staging directory in
+ * the user's home, and moved into place with a single sudo command at the end.
+ * Unlike SCP and tar, this doesn't preserve modification times, since setting
+ * them would cost two more round-trips per file.
+ */
+class SftpTransfer implements FileTransfer {
+    private static final int BULK_REQUESTS = 64;
+
+    private final SSHClient client;
+    private final Logger log;
+
+    SftpTransfer(SSHClient client, Logger log) {
+        this.client = client;
+        this.log = log;
+    }
+
+    @Override
+    public void copyFiles(File lDir, Collection<String> paths, String rDir) throws IOException {
+        final ChannelSftp sftp = client.openSftpChannel();
+        String staging = null;
+        boolean uploaded = false;
+        try {
+            sftp.setBulkRequests(BULK_REQUESTS);
+            staging = sftp.realpath(".") + "/.riotctl-" + UUID.randomUUID();
+            sftp.mkdir(staging);
+
+            final Set<String> dirs = new HashSet<String>();
+            for (String path : paths) {
+                final File lFile = new File(lDir, path);
+                if (lFile.isDirectory()) {
+                    mkdirs(sftp, staging, path, dirs);
+                    continue;
+                }
+                int pos = path.lastIndexOf('/');
+                if (pos > 0) {
+                    mkdirs(sftp, staging, path.substring(0, pos), dirs);
+                }
+                try (OutputStream out = client.throttle(sftp.put(staging + '/' + path), false)) {
+                    Files.copy(lFile.toPath(), out);
+                }
+            }
+            uploaded = true;
+        } catch (SftpException | JSchException e) {
+            throw new IOException("Uploading files to " + client.getHost() + " failed: " + e.getMessage(), e);
+        } finally {
+            sftp.disconnect();
+            // Once uploaded, the install step removes the staging directory
+            if (!uploaded && staging != null) {
+                removeStaging(staging);
+            }
+        }
+
+        final String source = SSHClient.quote(staging);
+        final String target = SSHClient.quote(rDir);
+        final String install = "mkdir -p " + target + " && cp -R --remove-destination " + source + "/. " + target;
+        log.debug("Moving uploaded files to " + rDir + " on " + client.getHost());
+        int rc = client.exec("chmod -R u=rwX,go=rX " + source + " && sudo sh -c " + SSHClient.quote(install)
+                + "; rc=$?; rm -rf " + source + "; exit $rc", false);
+        if (rc != 0) {
+            throw new IOException("Moving files to " + rDir + " returned exit status " + rc);
+        }
+    }
+
+    private void removeStaging(String staging) {
+        try {
+            client.exec("rm -rf " + SSHClient.quote(staging), false);
+        } catch (IOException e) {
+            // Don't hide the failure of the upload
+            log.warn("Unable to remove " + staging + " on " + client.getHost() + ": " + e.getMessage());
+        }
+    }
+
+    private static void mkdirs(ChannelSftp sftp, String staging, String path, Set<String> dirs)
+            throws SftpException {
+        int pos = 0;
+        do {
+            pos = path.indexOf('/', pos + 1);
+            final String dir = pos < 0 ? path : path.substring(0, pos);
+            if (dirs.add(dir)) {
+                sftp.mkdir(staging + '/' + dir);
+            }
+        } while (pos >= 0);
+    }
+}
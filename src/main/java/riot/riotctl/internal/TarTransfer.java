@@ -0,0 +1,58 @@
+package riot.riotctl.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.zip.GZIPOutputStream;
+
+import riot.riotctl.Logger;
+
+/**
+ * Copies files as a single tar stream, which is extracted remotely as it
+ * arrives. This needs only one channel and one sudo invocation for the whole
+ * tree. As with SCP, files are stored with their modification time. Reading
+ * and compressing the files runs in one thread, and sending them in another.
+ */
+class TarTransfer implements FileTransfer {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int QUEUE_CAPACITY = 8;
+
+    private final SSHClient client;
+    private final Logger log;
+    private final boolean gzip;
+
+    TarTransfer(SSHClient client, Logger log, boolean gzip) {
+        this.client = client;
+        this.log = log;
+        this.gzip = gzip;
+    }
+
+    @Override
+    public void copyFiles(File lDir, Collection<String> paths, String rDir) throws IOException {
+        final String dir = SSHClient.quote(rDir);
+        final String command = "sudo mkdir -p " + dir + " && sudo tar -x" + (gzip ? "z" : "") + " -C " + dir;
+
+        LogOutputStream out = new LogOutputStream(log::debug);
+        int rc = client.execStream(command, remote -> {
+            OutputStream pump = new ChunkPump(remote, gzip ? "gzip -> network" : "tar -> network",
+                    client.getStats(), BUFFER_SIZE, QUEUE_CAPACITY);
+            OutputStream stream = gzip ? new GZIPOutputStream(pump, BUFFER_SIZE) : pump;
+            try (TarWriter tar = new TarWriter(stream)) {
+                for (String path : paths) {
+                    final File lFile = new File(lDir, path);
+                    if (lFile.isDirectory()) {
+                        tar.putDirectory(path, lFile.lastModified());
+                    } else {
+                        tar.putFile(lFile, path);
+                    }
+                }
+            }
+        }, out);
+        out.close();
+
+        if (rc != 0) {
+            throw new IOException("Extracting files to " + rDir + " returned exit status " + rc);
+        }
+    }
+}
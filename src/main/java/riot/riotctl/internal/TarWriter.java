@@ -0,0 +1,137 @@
+package riot.riotctl.internal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes a tar archive (POSIX ustar format, with GNU long names) to a stream.
+ * Entries are owned by root, directories get mode 0755 and files 0644, which
+ * is what a copy via <code>sudo scp -p</code> would result in.
+ */
+class TarWriter implements Closeable {
+    private static final int BLOCK = 512;
+    private static final String OWNER = "root";
+    private static final String LONGLINK = "././@LongLink";
+
+    private final OutputStream out;
+    private final byte[] header = new byte[BLOCK];
+    private final byte[] buf = new byte[64 * 1024];
+
+    TarWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Adds a directory entry
+     *
+     * @param name
+     *            the path of the directory, relative to the archive root
+     * @param mtime
+     *            the modification time, in milliseconds
+     */
+    void putDirectory(String name, long mtime) throws IOException {
+        writeHeader(name.endsWith("/") ? name : name + '/', 0755, 0L, mtime, '5');
+    }
+
+    /**
+     * Adds a file entry, with the contents and modification time of a local file
+     *
+     * @param lFile
+     *            the local file
+     * @param name
+     *            the path of the file, relative to the archive root
+     */
+    void putFile(File lFile, String name) throws IOException {
+        final long size = lFile.length();
+        writeHeader(name, 0644, size, lFile.lastModified(), '0');
+
+        long remaining = size;
+        try (InputStream in = new FileInputStream(lFile)) {
+            while (remaining > 0) {
+                int len = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+                if (len < 0) {
+                    throw new IOException(lFile + " was truncated while being sent");
+                }
+                out.write(buf, 0, len);
+                remaining -= len;
+            }
+        }
+        pad(size);
+    }
+
+    /**
+     * Writes the end-of-archive marker (two empty blocks) and closes the stream
+     */
+    @Override
+    public void close() throws IOException {
+        Arrays.fill(header, (byte) 0);
+        out.write(header);
+        out.write(header);
+        out.close();
+    }
+
+    private void writeHeader(String name, int mode, long size, long mtime, char type) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > 100) {
+            // GNU extension: the name is sent as the contents of a pseudo-entry
+            writeHeader(LONGLINK, 0644, nameBytes.length + 1, 0L, 'L');
+            out.write(nameBytes);
+            out.write(0);
+            pad(nameBytes.length + 1);
+            nameBytes = Arrays.copyOf(nameBytes, 100);
+        }
+
+        Arrays.fill(header, (byte) 0);
+        System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+        putOctal(mode, 100, 8);
+        putOctal(0, 108, 8); // uid
+        putOctal(0, 116, 8); // gid
+        putOctal(size, 124, 12);
+        putOctal(mtime / 1000, 136, 12);
+        header[156] = (byte) type;
+        putString("ustar", 257);
+        putString("00", 263);
+        putString(OWNER, 265);
+        putString(OWNER, 297);
+
+        // The checksum is calculated with the checksum field filled with spaces
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xff;
+        }
+        putOctal(checksum, 148, 7);
+
+        out.write(header);
+    }
+
+    private void pad(long size) throws IOException {
+        int remainder = (int) (size % BLOCK);
+        if (remainder > 0) {
+            out.write(new byte[BLOCK - remainder]);
+        }
+    }
+
+    /**
+     * Writes a zero-padded, NUL-terminated octal number into a header field
+     */
+    private void putOctal(long value, int offset, int length) {
+        String octal = Long.toOctalString(value);
+        int pos = offset + length - 1;
+        header[pos--] = 0;
+        for (int i = octal.length() - 1; pos >= offset; i--) {
+            header[pos--] = (byte) (i >= 0 ? octal.charAt(i) : '0');
+        }
+    }
+
+    private void putString(String value, int offset) {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, header, offset, bytes.length);
+    }
+}
@@ -0,0 +1,40 @@
+package riot.riotctl.internal;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Passes data on in chunks, each after taking tokens for it from the
+ * {@link TransferScheduler} of its host.
+ */
+class ThrottledOutputStream extends FilterOutputStream {
+    /** Small enough for the rate to be smooth, large enough to be cheap */
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private final TransferScheduler.Throttle throttle;
+    private final boolean priority;
+
+    ThrottledOutputStream(OutputStream out, TransferScheduler.Throttle throttle, boolean priority) {
+        super(out);
+        this.throttle = throttle;
+        this.priority = priority;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        throttle.acquire(1, priority);
+        out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            final int chunk = Math.min(len, CHUNK_SIZE);
+            throttle.acquire(chunk, priority);
+            out.write(b, off, chunk);
+            off += chunk;
+            len -= chunk;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package riot.riotctl.internal;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate at which bytes are sent. Tokens accumulate at the given rate,
+ * up to a quarter second's worth, and every byte sent takes one. Senders of
+ * bulk data wait until the bucket isn't in debt, while priority senders never
+ * wait, but their bytes are still counted, so that bulk transfers make way for
+ * them.
+ */
+class TokenBucket {
+    private static final long MIN_CAPACITY = 16 * 1024;
+
+    private long rate;
+    private double capacity;
+    private double tokens;
+    private long updated = System.nanoTime();
+
+    /**
+     * @param rate
+     *            the rate in bytes per second, or 0 for no limit
+     */
+    TokenBucket(long rate) {
+        setRate(rate);
+    }
+
+    synchronized void setRate(long rate) {
+        refill();
+        this.rate = Math.max(0, rate);
+        this.capacity = Math.max(MIN_CAPACITY, rate / 4);
+        this.tokens = Math.min(tokens, capacity);
+    }
+
+    synchronized long getRate() {
+        return rate;
+    }
+
+    /**
+     * Takes tokens for the given number of bytes, waiting as long as the bucket
+     * is in debt unless they have priority
+     */
+    void acquire(int bytes, boolean priority) throws InterruptedIOException {
+        while (true) {
+            final long wait;
+            synchronized (this) {
+                if (rate == 0) {
+                    return;
+                }
+                refill();
+                if (priority || tokens >= 0) {
+                    tokens -= bytes;
+                    return;
+                }
+                wait = (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / rate);
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(Math.max(wait, TimeUnit.MILLISECONDS.toNanos(1)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(e.getMessage());
+            }
+        }
+    }
+
+    private void refill() {
+        final long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - updated) * (double) rate / TimeUnit.SECONDS.toNanos(1));
+        updated = now;
+    }
+}
@@ -0,0 +1,115 @@
+package riot.riotctl.internal;
+
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import riot.riotctl.Logger;
+
+/**
+ * Shares the uplink between the uploads to several hosts. Each host may have a
+ * rate limit of its own, and all of them share a global one, so that
+ * deployments don't starve other traffic on a site's link. Small control files
+ * are sent with priority over bulk data. While uploads are running, the rate at
+ * which each host receives data is logged every few seconds.
+ */
+public class TransferScheduler implements Closeable {
+    private static final long REPORT_INTERVAL = 5;
+
+    private final Logger log;
+    private final TokenBucket global = new TokenBucket(0);
+    private final List<Throttle> throttles = new CopyOnWriteArrayList<Throttle>();
+    private final ScheduledExecutorService reporter;
+
+    /**
+     * The share of the scheduler's bandwidth of a single host
+     */
+    public class Throttle {
+        private final String host;
+        private final TokenBucket bucket;
+        private final AtomicLong sent = new AtomicLong();
+        private long reported = 0;
+
+        private Throttle(String host, long rate) {
+            this.host = host;
+            this.bucket = new TokenBucket(rate);
+        }
+
+        void acquire(int bytes, boolean priority) throws InterruptedIOException {
+            bucket.acquire(bytes, priority);
+            global.acquire(bytes, priority);
+            sent.addAndGet(bytes);
+        }
+
+        /**
+         * @param priority
+         *            true for small control files, which shouldn't wait behind
+         *            bulk uploads
+         * @return a stream which sends data to the given one at this host's rate
+         */
+        OutputStream wrap(OutputStream out, boolean priority) {
+            return new ThrottledOutputStream(out, this, priority);
+        }
+    }
+
+    public TransferScheduler(Logger log) {
+        this.log = log;
+        this.reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "riotctl-throughput");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(this::report, REPORT_INTERVAL, REPORT_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param rate
+     *            the combined upload rate to all hosts in bytes per second, or 0
+     *            for no limit
+     */
+    public void setGlobalRate(long rate) {
+        global.setRate(rate);
+    }
+
+    /**
+     * @param rate
+     *            the upload rate to the host in bytes per second, or 0 for no
+     *            limit other than the global one
+     */
+    public Throttle forHost(String host, long rate) {
+        final Throttle throttle = new Throttle(host, rate);
+        throttles.add(throttle);
+        return throttle;
+    }
+
+    private void report() {
+        long total = 0;
+        int active = 0;
+        for (Throttle throttle : throttles) {
+            final long sent = throttle.sent.get();
+            final long delta = sent - throttle.reported;
+            throttle.reported = sent;
+            if (delta > 0) {
+                log.info(String.format("Uploading to %s at %.2f MB/s (%.1f MB so far)", throttle.host,
+                        delta / 1e6 / REPORT_INTERVAL, sent / 1e6));
+                total += delta;
+                active++;
+            }
+        }
+        if (active > 1) {
+            log.info(String.format("Uploading to %d hosts at %.2f MB/s in total", active,
+                    total / 1e6 / REPORT_INTERVAL));
+        }
+    }
+
+    @Override
+    public void close() {
+        reporter.shutdownNow();
+    }
+}
@@ -0,0 +1,120 @@
+package riot.riotctl.internal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A local record of the progress of a deployment to a device, so that a rerun
+ * after an interrupted deployment skips the files that were already copied, and
+ * continues the same release. It's kept next to the stage directory, with one
+ * line per event, and deleted once the deployment has completed.
+ */
+class UploadJournal {
+    private static final String RELEASE = "release ";
+    private static final String DONE = "done ";
+
+    private final File file;
+    private final Set<String> done = new HashSet<String>();
+    private String release;
+
+    private UploadJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the journal of the deployment of a stage directory to a device, if
+     * there is one
+     */
+    static UploadJournal open(File stageDir, SSHClient client) throws IOException {
+        final File parent = stageDir.getAbsoluteFile().getParentFile();
+        final UploadJournal journal = new UploadJournal(new File(parent, '.' + stageDir.getName() + '-'
+                + client.getHost() + (client.getPort() == SSHClient.DEFAULT_PORT ? "" : "-" + client.getPort())
+                + ".journal"));
+        if (journal.file.isFile()) {
+            for (String line : Files.readAllLines(journal.file.toPath(), StandardCharsets.UTF_8)) {
+                if (line.startsWith(RELEASE)) {
+                    journal.release = line.substring(RELEASE.length());
+                } else if (line.startsWith(DONE)) {
+                    journal.done.add(line.substring(DONE.length()));
+                }
+            }
+        }
+        return journal;
+    }
+
+    /**
+     * @return the release that was being deployed, or null if none was recorded
+     */
+    String getRelease() {
+        return release;
+    }
+
+    synchronized void setRelease(String release) throws IOException {
+        this.release = release;
+        append(RELEASE + release + '\n');
+    }
+
+    /**
+     * @return true if no file has been recorded as copied
+     */
+    synchronized boolean isEmpty() {
+        return done.isEmpty();
+    }
+
+    /**
+     * @return true if the file was already copied with the given content
+     */
+    synchronized boolean isDone(String rFile, String hash) {
+        return done.contains(hash + ' ' + rFile);
+    }
+
+    /**
+     * Records that a file has been copied completely
+     */
+    synchronized void done(String rFile, String hash) throws IOException {
+        if (done.add(hash + ' ' + rFile)) {
+            append(DONE + hash + ' ' + rFile + '\n');
+        }
+    }
+
+    /**
+     * Records that files have been copied completely into a directory
+     */
+    synchronized void done(String rDir, Collection<Manifest.Entry> entries) throws IOException {
+        final StringBuilder lines = new StringBuilder();
+        for (Manifest.Entry entry : entries) {
+            if (done.add(entry.hash + ' ' + rDir + '/' + entry.path)) {
+                lines.append(DONE).append(entry.hash).append(' ').append(rDir).append('/').append(entry.path)
+                        .append('\n');
+            }
+        }
+        if (lines.length() > 0) {
+            append(lines.toString());
+        }
+    }
+
+    /**
+     * Deletes the journal, once the deployment has completed, or to start over
+     * because whatever it records was copied elsewhere
+     */
+    synchronized void delete() {
+        done.clear();
+        release = null;
+        file.delete();
+    }
+
+    private void append(String lines) throws IOException {
+        // Written through at once, as the process may be killed at any moment
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+            out.write(lines);
+        }
+    }
+}
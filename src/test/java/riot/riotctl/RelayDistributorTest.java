@@ -0,0 +1,147 @@
+package riot.riotctl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import riot.riotctl.internal.LocalSshServer;
+import riot.riotctl.internal.Manifest;
+import riot.riotctl.internal.SSHClient;
+import riot.riotctl.logger.StdOutLogger;
+
+/**
+ * Relays a package between SSH servers running in the test.
+ */
+public class RelayDistributorTest {
+    private static final String PACKAGE = "app";
+
+    private final Logger log = new StdOutLogger();
+    private final List<LocalSshServer> servers = new ArrayList<LocalSshServer>();
+    private final List<SSHClient> clients = new ArrayList<SSHClient>();
+    private Path root;
+
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeTrue("No SSH client or tar", LocalSshServer.isSupported());
+        root = Files.createTempDirectory("riotctl-relay");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (SSHClient client : clients) {
+            client.close();
+        }
+        for (LocalSshServer server : servers) {
+            server.close();
+        }
+        if (root != null) {
+            try (Stream<Path> paths = Files.walk(root)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    @Test
+    public void relaysToTargetsWhichNeedIt() throws Exception {
+        final Path build = Files.createDirectory(root.resolve("build"));
+        write(build.resolve("app.jar"), "v2");
+        write(build.resolve("lib/new.jar"), "new");
+        final Manifest manifest = Manifest.of(build.toFile());
+
+        final SSHClient seed = connect("seed");
+        final Path seedDir = packageDir("seed");
+        write(seedDir.resolve("app.jar"), "v2");
+        write(seedDir.resolve("lib/new.jar"), "new");
+        write(seedDir.resolve("manifest.lst"), manifest.toString());
+        write(seedDir.resolve("dependencies.lst"), "seed");
+
+        // An older version, with a file which was removed since
+        final SSHClient stale = connect("stale");
+        final Path staleDir = packageDir("stale");
+        write(staleDir.resolve("app.jar"), "v1");
+        write(staleDir.resolve("old.jar"), "old");
+        write(staleDir.resolve("manifest.lst"), Manifest.of(staleDir.toFile()).toString());
+        write(staleDir.resolve("dependencies.lst"), "stale");
+
+        // The current version, with a file of its own which would be removed
+        // if the package were relayed to it
+        final SSHClient current = connect("current");
+        final Path currentDir = packageDir("current");
+        write(currentDir.resolve("app.jar"), "v2");
+        write(currentDir.resolve("lib/new.jar"), "new");
+        write(currentDir.resolve("manifest.lst"), manifest.toString());
+        write(currentDir.resolve("local.conf"), "local");
+
+        final SSHClient fresh = connect("fresh");
+        final Path freshDir = packageDir("fresh");
+
+        final List<SSHClient> unchanged = new ArrayList<SSHClient>();
+        final FleetResult result = new RelayDistributor(log, 2, 60000).distribute(Collections.singletonList(seed),
+                Arrays.asList(stale, current, fresh), PACKAGE, null, manifest, unchanged);
+
+        assertTrue(result.toString(), result.isSuccess());
+        assertEquals(Collections.singletonList(current), unchanged);
+
+        assertEquals("v2", read(staleDir.resolve("app.jar")));
+        assertEquals("new", read(staleDir.resolve("lib/new.jar")));
+        assertEquals(manifest.toString(), read(staleDir.resolve("manifest.lst")));
+        assertFalse(Files.exists(staleDir.resolve("old.jar")));
+        assertEquals("stale", read(staleDir.resolve("dependencies.lst")));
+
+        assertEquals("local", read(currentDir.resolve("local.conf")));
+
+        assertEquals("v2", read(freshDir.resolve("app.jar")));
+        assertEquals("new", read(freshDir.resolve("lib/new.jar")));
+        assertFalse(Files.exists(freshDir.resolve("dependencies.lst")));
+
+        // The relay's key pair is gone again
+        for (String host : Arrays.asList("seed", "stale", "fresh")) {
+            final Path home = root.resolve(host);
+            assertEquals("", read(home.resolve(".ssh/authorized_keys")).trim());
+            try (Stream<Path> files = Files.list(home)) {
+                assertFalse(files.anyMatch(file -> file.getFileName().toString().startsWith(".riotctl-relay-")));
+            }
+        }
+    }
+
+    /**
+     * Starts a server with a directory of its own, and connects to it
+     */
+    private SSHClient connect(String name) throws IOException {
+        final LocalSshServer server = new LocalSshServer(root.resolve(name));
+        servers.add(server);
+        final SSHClient client = server.connect(log);
+        clients.add(client);
+        return client;
+    }
+
+    private Path packageDir(String name) {
+        return root.resolve(name).resolve("usr/local").resolve(PACKAGE);
+    }
+
+    private static void write(Path file, String content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+}
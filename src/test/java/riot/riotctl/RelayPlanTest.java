@@ -0,0 +1,97 @@
+package riot.riotctl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import riot.riotctl.RelayPlan.Hop;
+
+public class RelayPlanTest {
+
+    @Test
+    public void doublesTheSourcesEveryRound() {
+        final RelayPlan<String> plan = new RelayPlan<String>(Collections.singletonList("seed"),
+                Arrays.asList("t1", "t2", "t3", "t4", "t5", "t6", "t7"), 2);
+        final List<Integer> sizes = new ArrayList<Integer>();
+        while (!plan.isDone()) {
+            final List<Hop<String>> hops = plan.nextRound();
+            sizes.add(hops.size());
+            for (Hop<String> hop : hops) {
+                plan.completed(hop, true);
+            }
+        }
+        assertEquals(Arrays.asList(1, 2, 4), sizes);
+        assertTrue(plan.getFailed().isEmpty());
+    }
+
+    @Test
+    public void sendsEveryTargetOnce() {
+        final List<String> targets = Arrays.asList("t1", "t2", "t3", "t4", "t5");
+        final RelayPlan<String> plan = new RelayPlan<String>(Arrays.asList("s1", "s2"), targets, 2);
+        final List<String> reached = new ArrayList<String>();
+        while (!plan.isDone()) {
+            for (Hop<String> hop : plan.nextRound()) {
+                // Only hosts which have the payload pass it on
+                assertTrue(hop.source.startsWith("s") || reached.contains(hop.source));
+                reached.add(hop.target);
+                plan.completed(hop, true);
+            }
+        }
+        Collections.sort(reached);
+        assertEquals(targets, reached);
+    }
+
+    @Test
+    public void retriesFromAnotherSource() {
+        final RelayPlan<String> plan = new RelayPlan<String>(Arrays.asList("s1", "s2"),
+                Collections.singletonList("t1"), 2);
+        final Hop<String> first = single(plan.nextRound());
+        assertEquals("s1", first.source);
+        plan.completed(first, false);
+
+        final Hop<String> retry = single(plan.nextRound());
+        assertEquals("t1", retry.target);
+        assertEquals("s2", retry.source);
+        plan.completed(retry, true);
+
+        assertTrue(plan.isDone());
+        assertTrue(plan.getFailed().isEmpty());
+    }
+
+    @Test
+    public void givesUpAfterTheLastAttempt() {
+        final RelayPlan<String> plan = new RelayPlan<String>(Collections.singletonList("seed"),
+                Arrays.asList("t1", "t2"), 2);
+        plan.completed(single(plan.nextRound()), false);
+        plan.completed(single(plan.nextRound()), true);
+
+        // t1 is retried once, as the only target left
+        final List<Hop<String>> hops = plan.nextRound();
+        assertEquals(1, hops.size());
+        assertEquals("t1", hops.get(0).target);
+        plan.completed(hops.get(0), false);
+
+        assertTrue(plan.isDone());
+        assertEquals(Collections.singletonList("t1"), plan.getFailed());
+    }
+
+    @Test
+    public void failsAllTargetsWithoutSources() {
+        final RelayPlan<String> plan = new RelayPlan<String>(Collections.<String>emptyList(),
+                Arrays.asList("t1", "t2"), 2);
+        assertTrue(plan.isDone());
+        assertTrue(plan.nextRound().isEmpty());
+        assertEquals(Arrays.asList("t1", "t2"), plan.getFailed());
+    }
+
+    private static Hop<String> single(List<Hop<String>> hops) {
+        assertEquals(1, hops.size());
+        return hops.get(0);
+    }
+}
@@ -0,0 +1,361 @@
+package riot.riotctl.discovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import riot.riotctl.logger.StdOutLogger;
+
+/**
+ * Runs the querier against responses which are multicast on the loopback
+ * interface, as crafted by the test rather than by a responder.
+ */
+public class MdnsQuerierTest {
+    private static final String SERVICE = "_test._tcp.local";
+    private static final InetSocketAddress GROUP = new InetSocketAddress("224.0.0.251", 5353);
+    private static final int TYPE_A = 1, TYPE_PTR = 12, TYPE_SRV = 33, CLASS_IN = 1, CACHE_FLUSH = 0x8000;
+
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+    private MulticastSocket socket;
+    private MdnsQuerier querier;
+
+    @Before
+    public void setUp() throws IOException {
+        final InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        final NetworkInterface lo = NetworkInterface.getByInetAddress(loopback);
+        socket = new MulticastSocket(null);
+        socket.setReuseAddress(true);
+        socket.bind(new InetSocketAddress(GROUP.getPort()));
+        try {
+            socket.setNetworkInterface(lo);
+            socket.joinGroup(GROUP, lo);
+        } catch (IOException e) {
+            socket.close();
+            Assume.assumeNoException("No multicast on the loopback interface", e);
+        }
+        socket.setSoTimeout(100);
+
+        querier = new MdnsQuerier(new StdOutLogger(), SERVICE + '.', Collections.singleton(loopback),
+                new MdnsQuerier.Listener() {
+                    @Override
+                    public void resolved(String name, List<InetAddress> addresses) {
+                        events.add("resolved " + name + ' ' + addresses);
+                    }
+
+                    @Override
+                    public void removed(String name) {
+                        events.add("removed " + name);
+                    }
+                });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (querier != null) {
+            querier.close();
+        }
+        socket.close();
+    }
+
+    @Test
+    public void resolvesCompressedResponse() throws Exception {
+        send(announce("dev1", "10.0.0.1"));
+        assertEquals("resolved dev1 [10.0.0.1/10.0.0.1]", next());
+    }
+
+    @Test
+    public void resolvesUncompressedResponse() throws Exception {
+        final Packet packet = new Packet(3);
+        packet.record(SERVICE, TYPE_PTR, 120).name("dev1." + SERVICE).end();
+        packet.record("dev1." + SERVICE, TYPE_SRV, 120).u16(0).u16(0).u16(22).name("dev1.local").end();
+        packet.record("dev1.local", TYPE_A, 120).address("10.0.0.1").end();
+        send(packet);
+        assertEquals("resolved dev1 [10.0.0.1/10.0.0.1]", next());
+    }
+
+    @Test
+    public void replacesAddressesOnCacheFlush() throws Exception {
+        send(announce("dev1", "10.0.0.1"));
+        assertEquals("resolved dev1 [10.0.0.1/10.0.0.1]", next());
+
+        // Records which came within a second of each other are kept
+        Thread.sleep(1100);
+        final Packet packet = new Packet(2);
+        packet.record("dev1.local", TYPE_A, CLASS_IN | CACHE_FLUSH, 120).address("10.0.0.2").end();
+        packet.record("dev1.local", TYPE_A, CLASS_IN | CACHE_FLUSH, 120).address("10.0.0.3").end();
+        send(packet);
+        assertEquals("resolved dev1 [10.0.0.2/10.0.0.2, 10.0.0.3/10.0.0.3]", next());
+    }
+
+    @Test
+    public void removesAddressOnGoodbye() throws Exception {
+        final Packet packet = announce("dev1", "10.0.0.1");
+        packet.count++;
+        packet.record("dev1.local", TYPE_A, 120).address("10.0.0.2").end();
+        send(packet);
+        assertEquals("resolved dev1 [10.0.0.1/10.0.0.1, 10.0.0.2/10.0.0.2]", next());
+
+        final Packet goodbye = new Packet(1);
+        goodbye.record("dev1.local", TYPE_A, 0).address("10.0.0.1").end();
+        send(goodbye);
+        assertEquals("resolved dev1 [10.0.0.2/10.0.0.2]", next());
+    }
+
+    @Test
+    public void removesInstanceOnGoodbye() throws Exception {
+        send(announce("dev1", "10.0.0.1"));
+        assertEquals("resolved dev1 [10.0.0.1/10.0.0.1]", next());
+
+        final Packet goodbye = new Packet(1);
+        goodbye.record(SERVICE, TYPE_PTR, 0).name("dev1." + SERVICE).end();
+        send(goodbye);
+        assertEquals("removed dev1", next());
+    }
+
+    @Test
+    public void removesInstanceWhoseRecordsExpire() throws Exception {
+        send(announce("dev1", "10.0.0.1", 2));
+        assertEquals("resolved dev1 [10.0.0.1/10.0.0.1]", next());
+
+        // Doesn't answer the querier any more
+        assertEquals("removed dev1", next());
+    }
+
+    @Test
+    public void backsOffFollowUpsForUnresolvedInstance() throws Exception {
+        // An instance whose SRV record never comes
+        final Packet packet = new Packet(1);
+        packet.record(SERVICE, TYPE_PTR, 120).name("dev1." + SERVICE).end();
+        send(packet);
+
+        // Asked for after 0.1 s, and then after 1, 2, 4... s, along with the
+        // regular queries for the service, however busy the network is
+        final Packet other = new Packet(1);
+        other.record("_other._tcp.local", TYPE_PTR, 120).name("dev2._other._tcp.local").end();
+        final long deadline = System.currentTimeMillis() + 5000;
+        int followUps = 0;
+        while (System.currentTimeMillis() < deadline) {
+            send(other);
+            final ByteBuffer query = receiveQuery();
+            if (query != null && query.getShort(4) > 1) {
+                followUps++;
+            }
+        }
+        assertTrue("No follow-up query was sent", followUps > 0);
+        assertTrue(followUps + " follow-up queries in 5 s", followUps <= 7);
+    }
+
+    @Test
+    public void survivesMalformedPackets() throws Exception {
+        // A name which points to itself
+        final Packet loop = new Packet(1);
+        loop.u8(0xc0).u8(12).u16(TYPE_PTR).u16(CLASS_IN).u32(120).u16(2).u8(0xc0).u8(12);
+        send(loop);
+        // A record which claims more data than the packet has
+        final Packet truncated = new Packet(1);
+        truncated.record(SERVICE, TYPE_PTR, 120).u8(0);
+        truncated.data.putShort(truncated.data.position() - 3, (short) 200);
+        send(truncated);
+        // A label of an extended type
+        final Packet extended = new Packet(1);
+        extended.u8(0x41).name(SERVICE).u16(TYPE_PTR).u16(CLASS_IN).u32(120).u16(0);
+        send(extended);
+        // A record header cut short
+        final Packet cut = new Packet(1);
+        cut.name(SERVICE).u16(TYPE_PTR);
+        send(cut);
+
+        send(announce("dev1", "10.0.0.1"));
+        assertEquals("resolved dev1 [10.0.0.1/10.0.0.1]", next());
+    }
+
+    @Test
+    public void splitsKnownAnswersWhichDontFit() throws Exception {
+        // Instances without SRV records, so that the querier asks for them
+        // right away, listing all of them as known answers
+        final int count = 60;
+        final char[] padding = new char[50];
+        Arrays.fill(padding, 'x');
+        final Packet packet = new Packet(count);
+        for (int i = 0; i < count; i++) {
+            packet.record(SERVICE, TYPE_PTR, 120).name(String.format("%02d", i) + new String(padding) + '.' + SERVICE)
+                    .end();
+        }
+        send(packet);
+
+        // The first query with known answers which didn't fit, and those
+        // following it until the last one
+        final long deadline = System.currentTimeMillis() + 5000;
+        int answers = 0;
+        boolean truncated = false;
+        while (System.currentTimeMillis() < deadline) {
+            final ByteBuffer query = receiveQuery();
+            if (query == null) {
+                continue;
+            }
+            assertTrue(query.limit() <= 1460);
+            final boolean tc = (query.getShort(2) & 0x0200) != 0;
+            if (!truncated && !tc) {
+                continue;
+            }
+            truncated = true;
+            answers += query.getShort(6);
+            if (!tc) {
+                break;
+            }
+        }
+        assertTrue("No truncated query was sent", truncated);
+        assertEquals(count, answers);
+
+        // Still running
+        send(announce("dev1", "10.0.0.1"));
+        String event;
+        do {
+            event = next();
+        } while (!event.startsWith("resolved dev1 "));
+    }
+
+    private String next() throws InterruptedException {
+        final String event = events.poll(5, TimeUnit.SECONDS);
+        assertNotNull("The querier reported nothing", event);
+        return event;
+    }
+
+    /**
+     * @return a response announcing an instance with its host and address,
+     *         compressed like responders do
+     */
+    private static Packet announce(String instance, String address) {
+        return announce(instance, address, 120);
+    }
+
+    private static Packet announce(String instance, String address, long ttl) {
+        final Packet packet = new Packet(3);
+        final int service = packet.data.position();
+        packet.record(SERVICE, TYPE_PTR, ttl);
+        final int instanceName = packet.data.position();
+        packet.label(instance).pointer(service).end();
+        packet.pointer(instanceName).header(TYPE_SRV, CLASS_IN | CACHE_FLUSH, ttl).u16(0).u16(0).u16(22);
+        final int host = packet.data.position();
+        packet.label(instance).pointer(service + 1 + "_test._tcp".length()).end();
+        packet.pointer(host).header(TYPE_A, CLASS_IN | CACHE_FLUSH, ttl).address(address).end();
+        return packet;
+    }
+
+    private void send(Packet packet) throws IOException {
+        packet.data.putShort(6, (short) packet.count);
+        socket.send(new DatagramPacket(packet.data.array(), packet.data.position(), GROUP));
+    }
+
+    /**
+     * @return the next query sent by the querier, or null if there was none
+     *         in time
+     */
+    private ByteBuffer receiveQuery() throws IOException {
+        final DatagramPacket packet = new DatagramPacket(new byte[9000], 9000);
+        try {
+            socket.receive(packet);
+        } catch (SocketTimeoutException e) {
+            return null;
+        }
+        final ByteBuffer buf = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+        return (buf.getShort(2) & 0x8000) == 0 ? buf : null;
+    }
+
+    /**
+     * Writes a response, one field at a time
+     */
+    private static final class Packet {
+        final ByteBuffer data = ByteBuffer.allocate(9000);
+        int count;
+        private int rdata;
+
+        Packet(int count) {
+            this.count = count;
+            data.putShort((short) 0).putShort((short) 0x8400).putShort((short) 0).putShort((short) count)
+                    .putShort((short) 0).putShort((short) 0);
+        }
+
+        Packet record(String name, int type, long ttl) {
+            return record(name, type, CLASS_IN, ttl);
+        }
+
+        Packet record(String name, int type, int rrclass, long ttl) {
+            return name(name).header(type, rrclass, ttl);
+        }
+
+        /** Writes the rest of a record after its name, with the length of its data filled in by {@link #end()} */
+        Packet header(int type, int rrclass, long ttl) {
+            u16(type).u16(rrclass).u32(ttl).u16(0);
+            rdata = data.position();
+            return this;
+        }
+
+        Packet end() {
+            data.putShort(rdata - 2, (short) (data.position() - rdata));
+            return this;
+        }
+
+        Packet name(String name) {
+            for (String label : name.split("\\.")) {
+                label(label);
+            }
+            return u8(0);
+        }
+
+        Packet label(String label) {
+            final byte[] bytes = label.getBytes(StandardCharsets.UTF_8);
+            data.put((byte) bytes.length).put(bytes);
+            return this;
+        }
+
+        Packet pointer(int offset) {
+            return u8(0xc0 | offset >> 8).u8(offset & 0xff);
+        }
+
+        Packet address(String address) {
+            try {
+                data.put(InetAddress.getByName(address).getAddress());
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e);
+            }
+            return this;
+        }
+
+        Packet u8(int value) {
+            data.put((byte) value);
+            return this;
+        }
+
+        Packet u16(int value) {
+            data.putShort((short) value);
+            return this;
+        }
+
+        Packet u32(long value) {
+            data.putInt((int) value);
+            return this;
+        }
+    }
+}
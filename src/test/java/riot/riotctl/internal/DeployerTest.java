@@ -0,0 +1,105 @@
+package riot.riotctl.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import riot.riotctl.Logger;
+import riot.riotctl.Target.TransferMethod;
+import riot.riotctl.logger.StdOutLogger;
+
+/**
+ * Deploys packages to an SSH server running in the test.
+ */
+public class DeployerTest {
+    private final Logger log = new StdOutLogger();
+    private Path root;
+    private LocalSshServer server;
+    private SSHClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeTrue("No SSH client or tar", LocalSshServer.isSupported());
+        root = Files.createTempDirectory("riotctl-deploy");
+        server = new LocalSshServer(root.resolve("device"));
+        client = server.connect(log);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (client != null) {
+            client.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+        if (root != null) {
+            try (Stream<Path> paths = Files.walk(root)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    @Test
+    public void leavesPreviousReleaseUntouchedWithTar() throws Exception {
+        deployTwoReleases(TransferMethod.TAR);
+    }
+
+    @Test
+    public void leavesPreviousReleaseUntouchedWithScp() throws Exception {
+        deployTwoReleases(TransferMethod.SCP);
+    }
+
+    /**
+     * Deploys a release, and then one in which a file changed. The second one
+     * starts out as hardlinks to the first one's files, which must not be
+     * written into.
+     */
+    private void deployTwoReleases(TransferMethod transferMethod) throws IOException {
+        client.setTransferMethod(transferMethod);
+        final PackageConfig pkgConf = new PackageConfig("app", client.getUsername(), true);
+
+        final Path first = root.resolve("first");
+        write(first.resolve("app.jar"), "v1");
+        write(first.resolve("lib/util.jar"), "util");
+        final Manifest firstManifest = Manifest.of(first.toFile());
+        assertTrue(new Deployer(client, log).deploy(first.toFile(), firstManifest, pkgConf, "r1"));
+
+        final Path second = root.resolve("second");
+        write(second.resolve("app.jar"), "v2");
+        write(second.resolve("lib/util.jar"), "util");
+        final Manifest secondManifest = Manifest.of(second.toFile());
+        assertTrue(new Deployer(client, log).deploy(second.toFile(), secondManifest, pkgConf, "r2"));
+
+        final Path previous = server.resolve(pkgConf.getReleaseDir("r1"));
+        assertEquals(firstManifest.toString(), read(previous.resolve("manifest.lst")));
+        assertEquals("v1", read(previous.resolve("app.jar")));
+
+        final Path current = server.resolve(pkgConf.getCurrentDir());
+        assertEquals("r2", current.toRealPath().getFileName().toString());
+        assertEquals(secondManifest.toString(), read(current.resolve("manifest.lst")));
+        assertEquals("v2", read(current.resolve("app.jar")));
+        assertEquals("util", read(current.resolve("lib/util.jar")));
+    }
+
+    private static void write(Path file, String content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,209 @@
+package riot.riotctl.internal;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import org.apache.sshd.common.config.keys.PublicKeyEntry;
+import org.apache.sshd.server.Environment;
+import org.apache.sshd.server.ExitCallback;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.channel.ChannelSession;
+import org.apache.sshd.server.command.Command;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+
+import riot.riotctl.Logger;
+
+/**
+ * An SSH server running in the test, which hands its commands to the local
+ * shell. It has a directory of its own, which is its home directory, and in
+ * which paths below /usr/local are resolved. Commands run as the user running
+ * the test, with sudo doing nothing but running its arguments.
+ */
+public final class LocalSshServer implements Closeable {
+    private static final String PASSWORD = "secret";
+
+    private final Path dir;
+    private final Path bin;
+    private final SshServer server;
+
+    public LocalSshServer(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir.resolve("usr/local"));
+        bin = Files.createDirectories(dir.resolveSibling(dir.getFileName() + ".bin"));
+        final Path sudo = bin.resolve("sudo");
+        Files.write(sudo, "#!/bin/sh\nexec \"$@\"\n".getBytes(StandardCharsets.US_ASCII));
+        Files.setPosixFilePermissions(sudo, PosixFilePermissions.fromString("rwxr-xr-x"));
+
+        server = SshServer.setUpDefaultServer();
+        server.setHost("127.0.0.1");
+        server.setPort(0);
+        server.setKeyPairProvider(
+                new SimpleGeneratorHostKeyProvider(dir.resolveSibling(dir.getFileName() + ".key")));
+        server.setPasswordAuthenticator((username, password, session) -> PASSWORD.equals(password));
+        server.setPublickeyAuthenticator((username, key, session) -> {
+            final Path authorizedKeys = dir.resolve(".ssh/authorized_keys");
+            try {
+                return Files.exists(authorizedKeys) && new String(Files.readAllBytes(authorizedKeys),
+                        StandardCharsets.US_ASCII).contains(PublicKeyEntry.toString(key));
+            } catch (IOException e) {
+                return false;
+            }
+        });
+        server.setCommandFactory((channel, command) -> new ShellCommand(command));
+        server.start();
+    }
+
+    /**
+     * @return true if the commands of the tests can be run by the local shell
+     */
+    public static boolean isSupported() {
+        return new File("/usr/bin/ssh").canExecute()
+                && (new File("/bin/tar").canExecute() || new File("/usr/bin/tar").canExecute());
+    }
+
+    public SSHClient connect(Logger log) throws IOException {
+        return new SSHClient("127.0.0.1", server.getPort(), "pi", PASSWORD, log, 10000);
+    }
+
+    public Path getDir() {
+        return dir;
+    }
+
+    /**
+     * @return the local path of a file on the server
+     */
+    public Path resolve(String rFile) {
+        return dir.resolve(rewrite(rFile));
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.stop(true);
+    }
+
+    private static String rewrite(String command) {
+        return command.replace("/usr/local", "usr/local");
+    }
+
+    /**
+     * Runs a command in the server's directory. Absolute paths below /usr/local
+     * are made relative to it, including those of commands which are passed on
+     * to other servers, as these run in their own directory. The same goes for
+     * the commands sent to a remote shell.
+     */
+    private final class ShellCommand implements Command {
+        private final String command;
+        private InputStream in;
+        private OutputStream out;
+        private OutputStream err;
+        private ExitCallback callback;
+        private Process process;
+
+        ShellCommand(String command) {
+            this.command = rewrite(command);
+        }
+
+        @Override
+        public void setInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public void setOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void setErrorStream(OutputStream err) {
+            this.err = err;
+        }
+
+        @Override
+        public void setExitCallback(ExitCallback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public void start(ChannelSession channel, Environment env) throws IOException {
+            final ProcessBuilder builder = new ProcessBuilder("/bin/sh", "-c", command).directory(dir.toFile());
+            builder.environment().put("HOME", dir.toString());
+            builder.environment().put("PATH", bin + ":" + System.getenv("PATH"));
+            process = builder.start();
+            final Thread stdOut = pipe(process.getInputStream(), out, false);
+            final Thread stdErr = pipe(process.getErrorStream(), err, false);
+            if (command.equals("sh")) {
+                rewriteLines(in, process.getOutputStream());
+            } else {
+                pipe(in, process.getOutputStream(), true);
+            }
+            new Thread(() -> {
+                try {
+                    final int rc = process.waitFor();
+                    stdOut.join();
+                    stdErr.join();
+                    callback.onExit(rc);
+                } catch (InterruptedException e) {
+                    callback.onExit(255);
+                }
+            }).start();
+        }
+
+        @Override
+        public void destroy(ChannelSession channel) {
+            if (process != null) {
+                process.destroy();
+            }
+        }
+
+        private void rewriteLines(InputStream from, OutputStream to) {
+            new Thread(() -> {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(from, StandardCharsets.UTF_8));
+                        Writer writer = new OutputStreamWriter(to, StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        writer.write(rewrite(line) + '\n');
+                        writer.flush();
+                    }
+                } catch (IOException e) {
+                    // The other end is gone
+                }
+            }).start();
+        }
+
+        private Thread pipe(InputStream from, OutputStream to, boolean close) {
+            final Thread thread = new Thread(() -> {
+                final byte[] buf = new byte[65536];
+                try {
+                    int n;
+                    while ((n = from.read(buf)) >= 0) {
+                        to.write(buf, 0, n);
+                        to.flush();
+                    }
+                } catch (IOException e) {
+                    // The other end is gone
+                } finally {
+                    if (close) {
+                        try {
+                            to.close();
+                        } catch (IOException e) {
+                            // Nothing left to do
+                        }
+                    }
+                }
+            });
+            thread.start();
+            return thread;
+        }
+    }
+}
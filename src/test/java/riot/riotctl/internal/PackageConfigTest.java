@@ -0,0 +1,22 @@
+package riot.riotctl.internal;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PackageConfigTest {
+
+    @Test
+    public void cannotReloadByDefault() {
+        final String unit = new PackageConfig("app", "pi").toSystemdFile();
+        assertFalse(unit, unit.contains("ExecReload="));
+    }
+
+    @Test
+    public void reloadsWithConfiguredCommand() {
+        final String unit = new PackageConfig("app", "pi").setReloadCommand("/usr/local/app/bin/reload $MAINPID")
+                .toSystemdFile();
+        assertTrue(unit, unit.contains("\nExecReload=/usr/local/app/bin/reload $MAINPID\n"));
+    }
+}